@@ -0,0 +1,174 @@
+package cs455.overlay.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*  Small benchmark harness for the hot paths of the overlay, so regressions show up before they reach a cluster.
+    The project builds with javac alone, so this does what the benchmarks need without a benchmark framework:
+    every benchmark is run for a number of timed warmup iterations (to let the JIT compile it) and then measured
+    iterations, and reports ops/sec plus the bytes allocated per op and the allocation rate, from the JVM's
+    per thread allocation counters (summed over all threads, so transport threads a benchmark uses are included).
+
+    Usage: java cs455.overlay.benchmark.BenchmarkRunner [name filter...]
+        A benchmark runs if its name contains any of the filters, or always if there are none.
+        -Dcs455.overlay.bench.warmupIterations (default 3), -Dcs455.overlay.bench.iterations (default 5)
+        -Dcs455.overlay.bench.iterationMillis (default 1000)  */
+public class BenchmarkRunner {
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("cs455.overlay.bench.warmupIterations", 3);
+    private static final int ITERATIONS = Integer.getInteger("cs455.overlay.bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("cs455.overlay.bench.iterationMillis", 1000) * 1_000_000;
+
+    /*  One benchmarked operation. run() does ops operations and returns something derived from their results,
+        which the runner consumes so the JIT can't drop the work  */
+    public interface Benchmark {
+        long run(int ops) throws Exception;
+    }
+
+    // Something a suite sets up for its benchmarks and tears down after them (e.g. sockets)
+    public interface Suite {
+        void register(BenchmarkRunner runner) throws Exception;
+
+        default void tearDown() throws Exception {
+        }
+    }
+
+    private static class Registered {
+        String name;
+        int opsPerCall;
+        Benchmark benchmark;
+    }
+
+    private ArrayList<Registered> benchmarks = new ArrayList<>();
+    private String[] filters;
+    private long sink = 0;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    public BenchmarkRunner(String[] filters) {
+        this.filters = filters;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            System.err.println("Thread allocation counters are not supported by this JVM, allocation won't be reported");
+        }
+    }
+
+    /*  name: suite.benchmark
+        opsPerCall: how many ops a call of benchmark.run() makes at least; the runner asks for multiples of it  */
+    public void add(String name, int opsPerCall, Benchmark benchmark) {
+        Registered registered = new Registered();
+        registered.name = name;
+        registered.opsPerCall = opsPerCall;
+        registered.benchmark = benchmark;
+        benchmarks.add(registered);
+    }
+
+    private boolean selected(String name) {
+        if (filters.length == 0)
+            return true;
+        for (String filter : filters) {
+            if (name.contains(filter))
+                return true;
+        }
+        return false;
+    }
+
+    // Runs every selected benchmark in the suite, then tears the suite down
+    public void run(Suite suite) throws Exception {
+        benchmarks.clear();
+        suite.register(this);
+        try {
+            for (Registered registered : benchmarks) {
+                if (selected(registered.name))
+                    measure(registered);
+            }
+        } finally {
+            suite.tearDown();
+        }
+    }
+
+    private long allocatedBytes() {
+        if (threadBean == null)
+            return 0;
+        long total = 0;
+        for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (allocated > 0)
+                total += allocated;
+        }
+        return total;
+    }
+
+    private void measure(Registered registered) throws Exception {
+        // size calls so one takes about a millisecond, so timing and allocation counting overhead doesn't show up
+        int opsPerCall = registered.opsPerCall;
+        while (true) {
+            long start = System.nanoTime();
+            sink += registered.benchmark.run(opsPerCall);
+            if (System.nanoTime() - start > 1_000_000 || opsPerCall > Integer.MAX_VALUE / 2)
+                break;
+            opsPerCall *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+            iteration(registered, opsPerCall);
+
+        double[] opsPerSec = new double[ITERATIONS];
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            long allocatedBefore = allocatedBytes();
+            long[] opsAndNanos = iteration(registered, opsPerCall);
+            totalAllocated += allocatedBytes() - allocatedBefore;
+            totalOps += opsAndNanos[0];
+            totalNanos += opsAndNanos[1];
+            opsPerSec[i] = opsAndNanos[0] * 1e9 / opsAndNanos[1];
+        }
+
+        Arrays.sort(opsPerSec);
+        double meanOpsPerSec = totalOps * 1e9 / totalNanos;
+        double bytesPerOp = (double) totalAllocated / totalOps;
+        double allocMBPerSec = totalAllocated / (totalNanos / 1e9) / (1024 * 1024);
+        System.out.printf("%-48s %14.0f ops/s  [%.0f .. %.0f]  %10.1f B/op  %8.1f MB/s alloc\n", registered.name,
+                meanOpsPerSec, opsPerSec[0], opsPerSec[opsPerSec.length - 1], bytesPerOp, allocMBPerSec);
+    }
+
+    // Calls the benchmark until ITERATION_NANOS have passed. Returns {ops, nanos}
+    private long[] iteration(Registered registered, int opsPerCall) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += registered.benchmark.run(opsPerCall);
+            ops += opsPerCall;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[] {ops, elapsed};
+    }
+
+    public static void main(String[] args) {
+        BenchmarkRunner runner = new BenchmarkRunner(args);
+        System.out.printf("%d warmup and %d measured iterations of %d ms per benchmark, Java %s\n",
+                WARMUP_ITERATIONS, ITERATIONS, ITERATION_NANOS / 1_000_000, System.getProperty("java.version"));
+
+        Suite[] suites = {new CodecBenchmarks(), new RoutingBenchmarks(), new RegistryBenchmarks(), new SenderQueueBenchmarks(), new LoopbackFramingBenchmarks()};
+        for (Suite suite : suites) {
+            try {
+                runner.run(suite);
+            } catch (Exception e) {
+                System.err.println("Benchmark suite " + suite.getClass().getSimpleName() + " failed");
+                e.printStackTrace();
+            }
+        }
+
+        // use the results so the JIT can't drop the benchmarked work
+        if (runner.sink == 42)
+            System.out.println();
+
+        // the loopback connections' transport threads don't stop when their sockets close
+        System.exit(0);
+    }
+}
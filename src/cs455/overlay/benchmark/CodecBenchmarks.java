@@ -0,0 +1,164 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.routing.Endpoint;
+import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.wireformats.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*  Marshalling and unmarshalling of the msgs: getBytes() and encode() of every wireformat,
+    and EventFactory.processMsg() on data packets and the largest control msg (the node manifest)  */
+public class CodecBenchmarks implements BenchmarkRunner.Suite {
+    private static final int BATCH = 1000;
+    // distinct data packets the decode benchmarks cycle through, a power of two
+    private static final int PACKETS = 64;
+
+    // a data packet relayed by 3 nodes, the usual trace length with a routing table of size 3
+    private static final int[] ROUTING_TRACE = {17, 42, 101};
+
+    @Override
+    public void register(BenchmarkRunner runner) throws Exception {
+        // 10 node overlay
+        RoutingTable routingTable = new RoutingTable(3);
+        ArrayList<Integer> registeredNodeIDs = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            registeredNodeIDs.add(i * 12);
+        for (int i = 0; i < 3; ++i)
+            routingTable.addRoutingEntry(registeredNodeIDs.get(1 << i), new Endpoint("192.168.100.10" + i, 50000 + i));
+
+        Event[] events = {
+                new OverlayNodeSendsRegistration("192.168.100.101", 50001),
+                new RegistryReportsRegistrationStatus(42, "Registration request successful. The number of messaging nodes currently constituting the overlay is (10)"),
+                new OverlayNodeSendsDeregistration("192.168.100.101", 50001, 42),
+                new RegistryReportsDeregistrationStatus(42, "Deregistration request successful. The number of messaging nodes currently constituting the overlay is (9)"),
+                new RegistrySendsNodeManifest(routingTable, registeredNodeIDs.size(), registeredNodeIDs),
+                new NodeReportsOverlaySetupStatus(42, "Messaging Node (42) established connections to messaging nodes in its routing table successfully"),
+                new RegistryRequestsTaskInitiate(25000),
+                new OverlayNodeSendsData(60, 12, 123456789, ROUTING_TRACE, true),
+                new OverlayNodeSendsData(60, 12, 123456789, ROUTING_TRACE, false),
+                new OverlayNodeReportsTaskFinished("192.168.100.101", 50001, 42),
+                new RegistryRequestsTrafficSummary(),
+                new OverlayNodeReportsTrafficSummary(42, 25000, 22000, 123456789012L, 24900, -98765432109L),
+        };
+
+        for (Event event : events) {
+            String name = event.getClass().getSimpleName();
+            if (event instanceof OverlayNodeSendsData)
+                name += ((OverlayNodeSendsData) event).hasCompactTrace() ? "(compact)" : "(fixed)";
+
+            runner.add("codec.getBytes." + name, BATCH, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; ++i)
+                    sum += event.getBytes().length;
+                return sum;
+            });
+
+            // what the transports do: encode into a reused buffer
+            ByteBuffer buffer = ByteBuffer.allocate(event.encodedSize());
+            runner.add("codec.encode." + name, BATCH, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; ++i) {
+                    buffer.clear();
+                    event.encode(buffer);
+                    sum += buffer.position();
+                }
+                return sum;
+            });
+        }
+
+        for (boolean compact : new boolean[] {true, false}) {
+            String encoding = compact ? "(compact)" : "(fixed)";
+            /*  Different packets back to back in one buffer, like a receive buffer holds them.
+                A benchmark that decoded the same packet over and over would let the JIT hoist the reads  */
+            byte[][] packets = new byte[PACKETS][];
+            int[] offsets = new int[PACKETS];
+            int totalLength = 0;
+            for (int i = 0; i < PACKETS; ++i) {
+                packets[i] = new OverlayNodeSendsData(i, 12, 123456789 * i, ROUTING_TRACE, compact).getBytes();
+                offsets[i] = totalLength;
+                totalLength += packets[i].length;
+            }
+            ByteBuffer dataBuffer = ByteBuffer.allocate(totalLength);
+            for (byte[] packet : packets)
+                dataBuffer.put(packet);
+
+            // blocking and NIO receivers: flyweight view, then the relay fast path
+            EventFactory flyweightFactory = new EventFactory(true);
+            runner.add("codec.processMsg.dataFlyweight" + encoding, BATCH, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; ++i) {
+                    int packet = i & (PACKETS - 1);
+                    OverlayNodeSendsData data = (OverlayNodeSendsData) flyweightFactory.processMsg(dataBuffer, offsets[packet], packets[packet].length);
+                    sum += data.getDstID() + data.getPayload();
+                }
+                return sum;
+            });
+            runner.add("codec.relayedBy" + encoding, BATCH, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; ++i) {
+                    int packet = i & (PACKETS - 1);
+                    OverlayNodeSendsData data = (OverlayNodeSendsData) flyweightFactory.processMsg(dataBuffer, offsets[packet], packets[packet].length);
+                    sum += data.relayedBy(77).length;
+                }
+                return sum;
+            });
+
+            /*  The same packets in batches, an op is still one packet: a view per batch, then nextPacket() for each
+                of its packets and the relay into a batch for the next hop  */
+            OverlayNodeSendsDataBatch batch = new OverlayNodeSendsDataBatch();
+            for (int i = 0; i < PACKETS; ++i)
+                batch.add(new OverlayNodeSendsData(i, 12, 123456789 * i, ROUTING_TRACE, compact));
+            byte[] batchBytes = batch.getBytes();
+            ByteBuffer batchBuffer = ByteBuffer.wrap(batchBytes);
+            runner.add("codec.processMsg.dataBatchFlyweight" + encoding, BATCH, ops -> {
+                long sum = 0;
+                int done = 0;
+                while (done < ops) {
+                    OverlayNodeSendsDataBatch received = (OverlayNodeSendsDataBatch) flyweightFactory.processMsg(batchBuffer, 0, batchBytes.length);
+                    OverlayNodeSendsData data;
+                    while (done < ops && (data = received.nextPacket()) != null) {
+                        sum += data.getDstID() + data.getPayload();
+                        ++done;
+                    }
+                }
+                return sum;
+            });
+            runner.add("codec.batchRelayedBy" + encoding, BATCH, ops -> {
+                long sum = 0;
+                int done = 0;
+                while (done < ops) {
+                    OverlayNodeSendsDataBatch received = (OverlayNodeSendsDataBatch) flyweightFactory.processMsg(batchBuffer, 0, batchBytes.length);
+                    OverlayNodeSendsDataBatch relayed = new OverlayNodeSendsDataBatch();
+                    OverlayNodeSendsData data;
+                    while (done < ops && (data = received.nextPacket()) != null) {
+                        relayed.addRelayed(data, 77);
+                        ++done;
+                    }
+                    sum += relayed.encodedSize();
+                }
+                return sum;
+            });
+
+            // full decode into a new msg
+            EventFactory factory = new EventFactory();
+            runner.add("codec.processMsg.data" + encoding, BATCH, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; ++i) {
+                    OverlayNodeSendsData data = (OverlayNodeSendsData) factory.processMsg(packets[i & (PACKETS - 1)]);
+                    sum += data.getDstID() + data.getRoutingTrace().length;
+                }
+                return sum;
+            });
+        }
+
+        byte[] manifestBytes = events[4].getBytes();
+        EventFactory factory = new EventFactory();
+        runner.add("codec.processMsg.nodeManifest", BATCH, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i)
+                sum += ((RegistrySendsNodeManifest) factory.processMsg(manifestBytes)).getRoutingTable().size();
+            return sum;
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.transport.Connection;
+import cs455.overlay.transport.TCPConnection;
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.Node;
+import cs455.overlay.wireformats.OverlayNodeSendsData;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*  Data packets sent over a loopback connection with each transport: queued on one side, batched, framed, written,
+    read, unframed and decoded on the other. An op is one packet delivered to the receiving node's onEvent()  */
+public class LoopbackFramingBenchmarks implements BenchmarkRunner.Suite {
+    private static final int BATCH = 1000;
+
+    // Node on the receiving end; only counts the packets it gets
+    private static class CountingNode implements Node {
+        private AtomicLong received = new AtomicLong();
+
+        @Override
+        public void onEvent(Event event, Connection connection) {
+            received.incrementAndGet();
+        }
+    }
+
+    private ArrayList<Socket> sockets = new ArrayList<>();
+
+    @Override
+    public void register(BenchmarkRunner runner) throws IOException {
+        Event event = new OverlayNodeSendsData(60, 12, 123456789, new int[] {17, 42, 101});
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        // blocking transport: sender and receiver thread per side
+        CountingNode blockingReceiver = new CountingNode();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, loopback)) {
+            Socket clientSocket = new Socket(loopback, serverSocket.getLocalPort());
+            Socket acceptedSocket = serverSocket.accept();
+            sockets.add(clientSocket);
+            sockets.add(acceptedSocket);
+
+            TCPConnection sender = new TCPConnection(clientSocket, new CountingNode());
+            TCPConnection receiver = new TCPConnection(acceptedSocket, blockingReceiver);
+            sender.startSenderAndReceiverThreads();
+            receiver.startSenderAndReceiverThreads();
+            addTransport(runner, "loopback.blocking", sender, blockingReceiver, event);
+        }
+
+        // NIO transport: each side is serviced by its node's selector thread
+        CountingNode nioReceiver = new CountingNode();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(loopback, 0));
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel acceptedChannel = serverChannel.accept();
+            sockets.add(clientChannel.socket());
+            sockets.add(acceptedChannel.socket());
+
+            TCPConnection sender = new TCPConnection(clientChannel, new CountingNode());
+            TCPConnection receiver = new TCPConnection(acceptedChannel, nioReceiver);
+            sender.startSenderAndReceiverThreads();
+            receiver.startSenderAndReceiverThreads();
+            addTransport(runner, "loopback.nio", sender, nioReceiver, event);
+        }
+    }
+
+    private void addTransport(BenchmarkRunner runner, String name, TCPConnection sender, CountingNode receiver, Event event) {
+        runner.add(name, BATCH, ops -> {
+            long target = receiver.received.get() + ops;
+            for (int i = 0; i < ops; ++i)
+                sender.sendEvent(event);
+            // the op is done when the packet arrives, so wait for the receiver to get them all
+            while (receiver.received.get() < target)
+                Thread.yield();
+            return target;
+        });
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets)
+            socket.close();
+    }
+}
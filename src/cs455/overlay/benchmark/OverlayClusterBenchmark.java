@@ -0,0 +1,143 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.node.MessagingNode;
+import cs455.overlay.node.Registry;
+import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.StatisticsCollectorAndDisplay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*  End to end throughput of a whole overlay on one box: boots a registry and numNodes msging nodes in this JVM on
+    loopback (every server socket on an ephemeral port), and drives setup-overlay and start through the registry's
+    InteractiveCommandParser instead of its stdin. For every run it reports the wall time from start until every
+    packet was delivered (read straight from the nodes' trackers), packets/sec, and whether the totals of the
+    registry's traffic summary match.
+
+    Usage: java cs455.overlay.benchmark.OverlayClusterBenchmark [numNodes [numPackets [routingTableSize [runs [packetsPerSecond]]]]]
+        defaults: 25 nodes, 250000 packets per node, routing table size 3, 1 run, unpaced
+        (packetsPerSecond paces every node's packets, like start number-of-messages packets-per-second)
+        -Dcs455.overlay.transport and -Dcs455.overlay.threads pick the transport and thread kind as usual,
+        -Dcs455.overlay.transport=memory keeps the whole overlay off the network,
+        -Dcs455.overlay.data.timestamps=true adds the end to end latency percentiles to every run  */
+public class OverlayClusterBenchmark {
+    private static final String LOOPBACK_IP = "127.0.0.1";
+    private static final long POLL_MILLIS = 10;
+    // how long setup steps may take, and how long delivery may stall, before the benchmark gives up
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private Registry registry;
+    private InteractiveCommandParser commandParser;
+    private ArrayList<MessagingNode> msgNodes = new ArrayList<>();
+
+    // Boots the registry and the msging nodes, waits until all of them are registered
+    public void boot(int numNodes) throws IOException, InterruptedException {
+        registry = Registry.launch(0);
+        commandParser = new InteractiveCommandParser(registry);
+        int registryPortNum = registry.getPortNum();
+
+        for (int i = 0; i < numNodes; ++i)
+            msgNodes.add(MessagingNode.launch(LOOPBACK_IP, LOOPBACK_IP, registryPortNum));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (registry.getNumRegisteredNodes() < numNodes) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Only " + registry.getNumRegisteredNodes() + " of " + numNodes + " nodes registered");
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    // setup-overlay, then waits until every node has connected to the nodes in its routing table
+    public void setupOverlay(int routingTableSize) throws IOException, InterruptedException {
+        commandParser.setupOverlay(routingTableSize);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (registry.getNumNodesEstablishedConnections() < msgNodes.size()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Only " + registry.getNumNodesEstablishedConnections() + " of " + msgNodes.size() + " nodes setup their connections");
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    // Packets received by all nodes since their last traffic summary
+    private long totalPacketsRcvd() {
+        long total = 0;
+        for (MessagingNode msgNode : msgNodes)
+            total += msgNode.getTrackers().getRcvTracker();
+        return total;
+    }
+
+    /*  start numPackets, waits for every packet to be delivered and then for the registry's traffic summary.
+        Returns false if delivery stalled or the summary never came  */
+    public boolean run(int runNum, int numPackets, int packetsPerSecond) throws InterruptedException {
+        StatisticsCollectorAndDisplay statCollector = registry.getStatCollector();
+        int numSummariesPrinted = statCollector.getNumSummariesPrinted();
+        long expected = (long) numPackets * msgNodes.size();
+
+        long start = System.nanoTime();
+        commandParser.start(numPackets, packetsPerSecond);
+
+        // the run is over when the last packet arrives at its sink, not when the sources finish sending
+        long delivered = 0;
+        long lastProgress = System.currentTimeMillis();
+        while (delivered < expected) {
+            Thread.sleep(POLL_MILLIS);
+            /*  The registry requests the summaries as soon as the overlay is drained, which resets the nodes' trackers,
+                so the summary can show up between two polls. If it came too early, its totals won't match  */
+            if (statCollector.getNumSummariesPrinted() > numSummariesPrinted)
+                break;
+            long rcvd = totalPacketsRcvd();
+            if (rcvd > delivered) {
+                delivered = rcvd;
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress > TIMEOUT_MILLIS) {
+                System.out.printf("Run %d: delivery stalled at %d of %d packets\n", runNum, delivered, expected);
+                return false;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (!statCollector.awaitTrafficSummary(numSummariesPrinted, TIMEOUT_MILLIS)) {
+            System.out.printf("Run %d: the registry never printed the traffic summary\n", runNum);
+            return false;
+        }
+        // how long after the last delivery the registry had the traffic summaries
+        double summarySeconds = (System.nanoTime() - start) / 1e9 - seconds;
+
+        boolean matched = statCollector.lastSummaryMatched() && statCollector.getLastTotalPacketsSent() == expected;
+        System.out.printf("Run %d: %d nodes x %d packets delivered in %.3f s (%.0f packets/sec), summary %.3f s later, totals sent %d received %d: %s\n",
+                runNum, msgNodes.size(), numPackets, seconds, expected / seconds, summarySeconds,
+                statCollector.getLastTotalPacketsSent(), statCollector.getLastTotalPacketsRcvd(), matched ? "MATCH" : "MISMATCH");
+        if (statCollector.getLastLatencyHistogram().getTotalCount() > 0)
+            System.out.printf("Run %d: latency (us) %s\n", runNum, statCollector.getLastLatencyHistogram().toPercentileString());
+        return matched;
+    }
+
+    public static void main(String[] args) {
+        int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+        int numPackets = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+        int routingTableSize = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int packetsPerSecond = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        boolean allMatched = true;
+        OverlayClusterBenchmark cluster = new OverlayClusterBenchmark();
+        try {
+            long bootStart = System.nanoTime();
+            cluster.boot(numNodes);
+            cluster.setupOverlay(routingTableSize);
+            System.out.printf("Booted registry and %d nodes with routing table size %d in %.3f s, Java %s\n",
+                    numNodes, routingTableSize, (System.nanoTime() - bootStart) / 1e9, System.getProperty("java.version"));
+
+            for (int run = 1; run <= runs; ++run)
+                allMatched &= cluster.run(run, numPackets, packetsPerSecond);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Overlay cluster benchmark failed");
+            e.printStackTrace();
+            allMatched = false;
+        }
+
+        // the nodes' server, sender and receiver threads don't stop on their own
+        System.exit(allMatched ? 0 : 1);
+    }
+}
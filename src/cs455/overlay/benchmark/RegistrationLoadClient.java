@@ -0,0 +1,179 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.node.Registry;
+import cs455.overlay.transport.Connection;
+import cs455.overlay.transport.Transport;
+import cs455.overlay.wireformats.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Registration storm: opens a connection to the registry for each of numNodes made up nodes, then sends all of
+    their OverlayNodeSendsRegistration requests at once (node i claims to listen on this host's IP, port
+    basePort + i) and times the registry's status reply to each. Reports registrations/sec from the first request
+    to the last reply and the ack latency percentiles, then deregisters every node the same way, so the registry is
+    left as it was and the client can be pointed at it again.
+
+    Usage: java cs455.overlay.benchmark.RegistrationLoadClient [numNodes [registry-host registry-port [basePort]]]
+        defaults: 2000 nodes, a registry launched in this JVM on an ephemeral port, ports from 20000
+        -Dcs455.overlay.transport picks the transport as usual; with the blocking one every connection has a sender
+        and a receiver thread on both ends, so thousands of nodes want a small -Dcs455.overlay.sender.queueCapacity  */
+public class RegistrationLoadClient implements Node {
+    private static final String LOOPBACK_IP = "127.0.0.1";
+    // how long the replies to a storm may take before the client gives up on them
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private String IP;
+    private Connection[] connections;
+    /*  node index of each connection, by identity. Filled in once every connection is open, then only read by the
+        threads the replies arrive on; volatile so they see it filled  */
+    private volatile IdentityHashMap<Connection, Integer> nodeIndices;
+    private int[] IDs;
+    private int basePort;
+
+    // when each node's request was sent and how long its reply took, by node index
+    private long[] sentNanos;
+    private long[] ackNanos;
+    private AtomicInteger numFailed = new AtomicInteger();
+    private volatile CountDownLatch replies;
+
+    public RegistrationLoadClient(String IP, int numNodes, int basePort) {
+        this.IP = IP;
+        this.connections = new Connection[numNodes];
+        this.IDs = new int[numNodes];
+        Arrays.fill(IDs, -1);
+        this.basePort = basePort;
+        this.sentNanos = new long[numNodes];
+        this.ackNanos = new long[numNodes];
+    }
+
+    /*  One connection per node, opened and started before any request is sent so the storm doesn't time the connects.
+        This client is the node of all of them, so the NIO transport serves them all from one selector thread, like
+        it would the connections of one real node  */
+    public void connect(String registryIP, int registryPortNum) throws IOException {
+        IdentityHashMap<Connection, Integer> indices = new IdentityHashMap<>(connections.length);
+        for (int i = 0; i < connections.length; ++i) {
+            connections[i] = Transport.current().connect(registryIP, registryPortNum, this);
+            indices.put(connections[i], i);
+        }
+        nodeIndices = indices;
+        for (Connection connection : connections)
+            connection.start();
+    }
+
+    // The registry's reply to one of the nodes' requests, on the connection that node sent it on
+    @Override
+    public void onEvent(Event event, Connection connection) {
+        long now = System.nanoTime();
+        Integer nodeIndex = nodeIndices.get(connection);
+        if (nodeIndex == null)
+            return;
+        int ID;
+        if (event.getType() == Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS) {
+            ID = ((RegistryReportsRegistrationStatus) event).getID();
+            IDs[nodeIndex] = ID;
+        } else if (event.getType() == Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS) {
+            ID = ((RegistryReportsDeregistrationStatus) event).getDeregisteredID();
+        } else {
+            return;
+        }
+
+        if (ID == -1)
+            numFailed.incrementAndGet();
+        ackNanos[nodeIndex] = now - sentNanos[nodeIndex];
+        replies.countDown();
+    }
+
+    /*  Sends every node's registration (or deregistration, of the nodes that registered) back to back and waits for
+        the replies. Prints the rate and ack latency, returns false if replies are missing or any request failed  */
+    public boolean storm(boolean register) throws InterruptedException {
+        int numRequests = 0;
+        for (int i = 0; i < connections.length; ++i) {
+            if (register || IDs[i] != -1)
+                ++numRequests;
+        }
+        replies = new CountDownLatch(numRequests);
+        numFailed.set(0);
+        Arrays.fill(ackNanos, -1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections.length; ++i) {
+            if (!register && IDs[i] == -1)
+                continue;
+            sentNanos[i] = System.nanoTime();
+            if (register)
+                connections[i].sendEvent(new OverlayNodeSendsRegistration(IP, basePort + i));
+            else
+                connections[i].sendEvent(new OverlayNodeSendsDeregistration(IP, basePort + i, IDs[i]));
+        }
+        boolean allReplied = replies.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // latencies of the replies that came, in microseconds
+        long[] latencies = new long[numRequests];
+        int numReplies = 0;
+        for (long ack : ackNanos) {
+            if (ack != -1)
+                latencies[numReplies++] = ack / 1000;
+        }
+        latencies = Arrays.copyOf(latencies, numReplies);
+        Arrays.sort(latencies);
+
+        String requests = register ? "registrations" : "deregistrations";
+        System.out.printf("%d %s in %.3f s (%.0f %s/sec), %d replies, %d failed\n", numRequests, requests, seconds,
+                numReplies / seconds, requests, numReplies, numFailed.get());
+        if (numReplies > 0)
+            System.out.printf("Ack latency (us): p50 %d  p99 %d  p99.9 %d  max %d\n", percentile(latencies, 50),
+                    percentile(latencies, 99), percentile(latencies, 99.9), latencies[numReplies - 1]);
+        return allReplied && numFailed.get() == 0;
+    }
+
+    // latencies sorted ascending
+    private static long percentile(long[] latencies, double percentile) {
+        int rank = (int) Math.max(1, Math.ceil(percentile / 100 * latencies.length));
+        return latencies[rank - 1];
+    }
+
+    public static void main(String[] args) {
+        int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        boolean succeeded;
+        try {
+            String registryIP;
+            int registryPortNum;
+            String IP;
+            if (args.length > 2) {
+                registryIP = args[1];
+                registryPortNum = Integer.parseInt(args[2]);
+                // the registry checks the IP in a request against the IP the connection came from
+                IP = InetAddress.getByName(registryIP).isLoopbackAddress() ? LOOPBACK_IP : InetAddress.getLocalHost().getHostAddress();
+            } else {
+                registryIP = LOOPBACK_IP;
+                registryPortNum = Registry.launch(0).getPortNum();
+                IP = LOOPBACK_IP;
+            }
+
+            RegistrationLoadClient client = new RegistrationLoadClient(IP, numNodes, basePort);
+            long connectStart = System.nanoTime();
+            client.connect(registryIP, registryPortNum);
+            System.out.printf("Opened %d connections to the registry at %s:%d in %.3f s, Java %s\n", numNodes,
+                    registryIP, registryPortNum, (System.nanoTime() - connectStart) / 1e9, System.getProperty("java.version"));
+
+            succeeded = client.storm(true);
+            succeeded &= client.storm(false);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Registration load client failed");
+            e.printStackTrace();
+            succeeded = false;
+        }
+
+        // the connections' transport threads don't stop on their own
+        System.exit(succeeded ? 0 : 1);
+    }
+}
@@ -0,0 +1,131 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.routing.Endpoint;
+import cs455.overlay.routing.IDSpace;
+import cs455.overlay.routing.Membership;
+import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.wireformats.RegistrySendsNodeManifest;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*  The registry's CPU work in setup-overlay, an op is a whole overlay: the routing tables and the marshalled node
+    manifests, the old way (one node after the other, Math.pow per entry, and a fresh copy of the node ID list
+    encoded into every manifest) vs the fork-join tables and the manifests sharing one encoded node ID list.
+    And registering every node of the overlay, an op is a node: the TreeMap with a scan of its values for each
+    registration vs the Membership's endpoint index.
+    No connections, so this is the part of the setup the network doesn't account for.
+    -Dcs455.overlay.bench.setupNodes (default 1000, or the whole ID space if it is smaller),
+    -Dcs455.overlay.bench.setupRoutingTableSize (default 10, fewer if 2^(size-1) would reach around the overlay),
+    IDs are drawn from the registry's ID space (-Dcs455.overlay.idBits, make bench uses the default 128 IDs)  */
+public class RegistryBenchmarks implements BenchmarkRunner.Suite {
+    private static final int NUM_NODES = Integer.getInteger("cs455.overlay.bench.setupNodes", (int) Math.min(1000, IDSpace.SIZE));
+    private static final int ROUTING_TABLE_SIZE = Integer.getInteger("cs455.overlay.bench.setupRoutingTableSize",
+            Math.min(10, 32 - Integer.numberOfLeadingZeros(NUM_NODES - 1)));
+
+    @Override
+    public void register(BenchmarkRunner runner) {
+        if (NUM_NODES < 2 || NUM_NODES > IDSpace.SIZE) {
+            System.out.printf("Skipping registry benchmarks: need 2 <= setupNodes <= %d\n", IDSpace.SIZE);
+            return;
+        }
+
+        // registered nodes, keyed by ID like the registry keeps them
+        Random r = new Random(455);
+        TreeMap<Integer, Endpoint> registeredNodes = new TreeMap<>();
+        while (registeredNodes.size() < NUM_NODES) {
+            int ID = r.nextInt() & IDSpace.SIZE_MASK;
+            if (!registeredNodes.containsKey(ID))
+                registeredNodes.put(ID, new Endpoint("127.0.0.1", 1024 + registeredNodes.size()));
+        }
+
+        Endpoint[] nodeEndpoints = registeredNodes.values().toArray(new Endpoint[0]);
+
+        // what registerNode() did before the Membership: a scan for the endpoint, then probe for a free ID
+        runner.add("registry.register.scan", NUM_NODES, ops -> {
+            long sum = 0;
+            TreeMap<Integer, Endpoint> nodes = new TreeMap<>();
+            for (int i = 0; i < ops; ++i) {
+                if (i % NUM_NODES == 0)
+                    nodes.clear();
+                Endpoint endpoint = nodeEndpoints[i % NUM_NODES];
+                if (nodes.containsValue(endpoint))
+                    continue;
+                int ID = IDSpace.hash(endpoint);
+                while (nodes.containsKey(ID))
+                    ID = IDSpace.next(ID);
+                nodes.put(ID, endpoint);
+                sum += ID;
+            }
+            return sum;
+        });
+
+        runner.add("registry.register.membership", NUM_NODES, ops -> {
+            long sum = 0;
+            Membership membership = new Membership();
+            for (int i = 0; i < ops; ++i) {
+                if (i % NUM_NODES == 0)
+                    membership = new Membership();
+                sum += membership.register(nodeEndpoints[i % NUM_NODES]);
+            }
+            return sum;
+        });
+
+        // what setup-overlay did before the fork-join tables and the shared node ID list
+        runner.add("registry.setupOverlay.serial", 1, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                ArrayList<Map.Entry<Integer, Endpoint>> registeredNodesList = new ArrayList<>(registeredNodes.entrySet());
+                TreeMap<Integer, RoutingTable> nodeRoutingTables = new TreeMap<>();
+                for (int nodeIndex = 0; nodeIndex < registeredNodesList.size(); ++nodeIndex) {
+                    RoutingTable routingTable = new RoutingTable(ROUTING_TABLE_SIZE);
+                    for (int entry = 0; entry < ROUTING_TABLE_SIZE; ++entry) {
+                        int hopsAway = ((int) Math.pow(2, entry));
+                        int indexAtHopsAway = (nodeIndex + hopsAway) % registeredNodesList.size();
+                        routingTable.addRoutingEntry(registeredNodesList.get(indexAtHopsAway).getKey(), registeredNodesList.get(indexAtHopsAway).getValue());
+                    }
+                    nodeRoutingTables.put(registeredNodesList.get(nodeIndex).getKey(), routingTable);
+                }
+                for (Map.Entry<Integer, RoutingTable> tableEntry : nodeRoutingTables.entrySet()) {
+                    int nodeID = tableEntry.getKey();
+                    RoutingTable routingTable = tableEntry.getValue();
+                    for (int entry = 0; entry < routingTable.size(); ++entry) {
+                        int entryID = routingTable.getID(entry);
+                        RoutingTable entryTable = nodeRoutingTables.get(entryID);
+                        routingTable.setAwaitsConnection(entry, entryID < nodeID && entryTable != null && entryTable.contains(nodeID));
+                    }
+                }
+                for (int nodeIndex = 0; nodeIndex < registeredNodesList.size(); ++nodeIndex) {
+                    RoutingTable routingTable = nodeRoutingTables.get(registeredNodesList.get(nodeIndex).getKey());
+                    ArrayList<Integer> registeredNodeIds = new ArrayList<>(registeredNodes.keySet());
+                    // the transports marshalled each manifest when they sent it
+                    sum += new RegistrySendsNodeManifest(routingTable, registeredNodes.size(), registeredNodeIds).getBytes().length;
+                }
+            }
+            return sum;
+        });
+
+        runner.add("registry.setupOverlay", 1, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                int[] nodeIDs = new int[NUM_NODES];
+                Endpoint[] endpoints = new Endpoint[NUM_NODES];
+                ArrayList<Integer> registeredNodeIDs = new ArrayList<>(NUM_NODES);
+                int nodeIndex = 0;
+                for (Map.Entry<Integer, Endpoint> registeredNode : registeredNodes.entrySet()) {
+                    nodeIDs[nodeIndex] = registeredNode.getKey();
+                    endpoints[nodeIndex] = registeredNode.getValue();
+                    registeredNodeIDs.add(registeredNode.getKey());
+                    ++nodeIndex;
+                }
+                RoutingTable[] routingTables = InteractiveCommandParser.buildRoutingTables(nodeIDs, endpoints, ROUTING_TABLE_SIZE);
+                for (byte[] nodeManifest : InteractiveCommandParser.encodeNodeManifests(routingTables, registeredNodeIDs))
+                    sum += nodeManifest.length;
+            }
+            return sum;
+        });
+    }
+}
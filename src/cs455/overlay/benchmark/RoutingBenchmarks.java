@@ -0,0 +1,150 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.node.MessagingNode;
+import cs455.overlay.routing.Endpoint;
+import cs455.overlay.routing.IDSpace;
+import cs455.overlay.routing.NextHopTable;
+import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.transport.Connection;
+import cs455.overlay.transport.ConnectionsCache;
+import cs455.overlay.wireformats.Event;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+/*  Per packet routing decisions: picking a random dst (the old new Random() and retry on self vs an index into the
+    dst array MessagingNode builds from the manifest), and finding the next hop to it the old way (sort the routing
+    table keys and scan them for every packet, then look the entry up in the connections cache) vs the NextHopTable
+    built from the manifest.
+    -Dcs455.overlay.bench.numNodes (default 10), -Dcs455.overlay.bench.routingTableSize (default 3),
+    IDs are drawn from the registry's ID space (-Dcs455.overlay.idBits)  */
+public class RoutingBenchmarks implements BenchmarkRunner.Suite {
+    private static final int NUM_NODES = Integer.getInteger("cs455.overlay.bench.numNodes", 10);
+    private static final int ROUTING_TABLE_SIZE = Integer.getInteger("cs455.overlay.bench.routingTableSize", 3);
+    // dsts are precomputed so the lookups don't time the random number generator
+    private static final int NUM_DSTS = 4096;
+
+    @Override
+    public void register(BenchmarkRunner runner) {
+        if (NUM_NODES < 2 || NUM_NODES > IDSpace.SIZE || (1 << (ROUTING_TABLE_SIZE - 1)) >= NUM_NODES) {
+            System.out.printf("Skipping routing benchmarks: need 2 <= numNodes <= %d and 2^(routingTableSize-1) < numNodes\n", IDSpace.SIZE);
+            return;
+        }
+        Random r = new Random(455);
+
+        // registered IDs, the first one is this node
+        TreeSet<Integer> ids = new TreeSet<>();
+        while (ids.size() < NUM_NODES)
+            ids.add(r.nextInt() & IDSpace.SIZE_MASK);
+        ArrayList<Integer> registeredNodeIDs = new ArrayList<>(ids);
+        int selfID = registeredNodeIDs.get(0);
+
+        // routing table entries are the nodes 1, 2, 4, ... hops away, same as the registry builds them
+        RoutingTable routingTable = new RoutingTable(ROUTING_TABLE_SIZE);
+        ConnectionsCache connectionsCache = new ConnectionsCache();
+        for (int i = 0; i < ROUTING_TABLE_SIZE; ++i) {
+            int entryID = registeredNodeIDs.get((1 << i) % NUM_NODES);
+            Endpoint endpoint = new Endpoint("127.0.0.1", 50000 + entryID);
+            routingTable.addRoutingEntry(entryID, endpoint);
+            // no real connections here; the cache lookup is still done so both paths do the same work
+            connectionsCache.addConnection(endpoint.toString(), new PlaceholderConnection(endpoint));
+        }
+
+        NextHopTable nextHopTable = new NextHopTable(routingTable, registeredNodeIDs, selfID);
+        nextHopTable.resolveConnections(routingTable);
+
+        int[] nodeDstIDs = MessagingNode.buildDstIDs(registeredNodeIDs, selfID);
+        SplittableRandom random = new SplittableRandom(455);
+        int[] dstIDs = new int[NUM_DSTS];
+        for (int i = 0; i < NUM_DSTS; ++i)
+            dstIDs[i] = MessagingNode.selectRandomDstID(nodeDstIDs, random);
+
+        // what MessagingNode did per packet before the dst array: a new Random, and draw again if it picked itself
+        runner.add("routing.selectRandomDstID.rejection", NUM_DSTS, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                Random rand = new Random();
+                int dstID = registeredNodeIDs.get(rand.nextInt(registeredNodeIDs.size()));
+                while (dstID == selfID)
+                    dstID = registeredNodeIDs.get(rand.nextInt(registeredNodeIDs.size()));
+                sum += dstID;
+            }
+            return sum;
+        });
+
+        runner.add("routing.selectRandomDstID", NUM_DSTS, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i)
+                sum += MessagingNode.selectRandomDstID(nodeDstIDs, random);
+            return sum;
+        });
+
+        // the per packet routing MessagingNode did before the NextHopTable (findClosestNode)
+        runner.add("routing.sortPerPacket", NUM_DSTS, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                int dstID = dstIDs[i & (NUM_DSTS - 1)];
+                int nextHopID = routingTable.contains(dstID) ? dstID : NextHopTable.findClosestID(routingTable, dstID);
+                Connection connection = connectionsCache.getConnection(routingTable.getEntry(nextHopID).toString());
+                sum += nextHopID + System.identityHashCode(connection);
+            }
+            return sum;
+        });
+
+        runner.add("routing.nextHopTable", NUM_DSTS, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                int dstID = dstIDs[i & (NUM_DSTS - 1)];
+                Connection connection = nextHopTable.getNextHop(dstID);
+                sum += nextHopTable.getNextHopID(dstID) + System.identityHashCode(connection);
+            }
+            return sum;
+        });
+    }
+
+    // Stands in for a node's connection in the cache, which doesn't take nulls. Drops whatever is sent on it
+    private static class PlaceholderConnection implements Connection {
+        private final Endpoint endpoint;
+
+        PlaceholderConnection(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void sendEvent(Event event) {
+        }
+
+        @Override
+        public void relayEvent(Event event) {
+        }
+
+        @Override
+        public void sendMessage(byte[] msg) {
+        }
+
+        @Override
+        public void relayMessage(byte[] msg) {
+        }
+
+        @Override
+        public int getMsgQueueSize() {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public String getRemoteIP() {
+            return endpoint.getIP();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return endpoint.toString();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cs455.overlay.benchmark;
+
+import cs455.overlay.transport.MessageRingBuffer;
+import cs455.overlay.transport.TCPSenderThread;
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.OverlayNodeSendsData;
+
+import java.util.ArrayList;
+
+/*  The msg queue of a TCPSenderThread: enqueue and dequeue on one thread (the cost per msg with no contention),
+    and the sender thread's side of the queue while 1 and 4 threads enqueue at once
+    (the main thread sending plus receiver threads relaying)  */
+public class SenderQueueBenchmarks implements BenchmarkRunner.Suite {
+    private static final int BATCH = 1000;
+
+    private ArrayList<Thread> producers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    @Override
+    public void register(BenchmarkRunner runner) {
+        Event event = new OverlayNodeSendsData(60, 12, 123456789, OverlayNodeSendsData.EMPTY_ROUTING_TRACE);
+
+        MessageRingBuffer<Event> queue = new MessageRingBuffer<>(TCPSenderThread.QUEUE_CAPACITY, TCPSenderThread.SPIN_TRIES);
+        runner.add("senderQueue.offerPoll", BATCH, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; ++i) {
+                queue.offer(event);
+                sum += queue.poll().encodedSize();
+            }
+            return sum;
+        });
+
+        addContended(runner, event, 1);
+        addContended(runner, event, 4);
+    }
+
+    // ops are msgs the consumer takes while numProducers threads keep the queue full
+    private void addContended(BenchmarkRunner runner, Event event, int numProducers) {
+        MessageRingBuffer<Event> queue = new MessageRingBuffer<>(TCPSenderThread.QUEUE_CAPACITY, TCPSenderThread.SPIN_TRIES);
+        boolean[] started = {false};
+        runner.add("senderQueue.take." + numProducers + "producers", BATCH, ops -> {
+            // start the producers on first use, and stop the previous benchmark's, so only this benchmark's producers run
+            if (!started[0]) {
+                started[0] = true;
+                stopProducers();
+                for (int i = 0; i < numProducers; ++i) {
+                    Thread producer = new Thread(() -> {
+                        while (running)
+                            queue.offer(event);
+                    });
+                    producer.setDaemon(true);
+                    producer.start();
+                    producers.add(producer);
+                }
+            }
+            long sum = 0;
+            for (int i = 0; i < ops; ++i)
+                sum += queue.take().encodedSize();
+            return sum;
+        });
+    }
+
+    private void stopProducers() throws InterruptedException {
+        running = false;
+        for (Thread producer : producers)
+            producer.join();
+        producers.clear();
+        running = true;
+    }
+
+    @Override
+    public void tearDown() throws InterruptedException {
+        stopProducers();
+    }
+}
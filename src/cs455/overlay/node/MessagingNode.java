@@ -1,44 +1,70 @@
 package cs455.overlay.node;
 
+import cs455.overlay.routing.Endpoint;
+import cs455.overlay.routing.NextHopBatches;
+import cs455.overlay.routing.NextHopTable;
 import cs455.overlay.routing.RoutingTable;
 import cs455.overlay.transport.*;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LiveStatsReporter;
+import cs455.overlay.util.TokenBucket;
+import cs455.overlay.util.TrafficTrackers;
 import cs455.overlay.wireformats.*;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessagingNode implements Protocol, Node {
     private boolean DEBUG = false;
 
+    /*  Threads that generate and send this node's packets on task initiate, -Dcs455.overlay.node.senderThreads.
+        The packets to send are split evenly between them  */
+    private static final int SENDER_THREADS = Math.max(1, Integer.getInteger("cs455.overlay.node.senderThreads", 2));
+    // how many milliseconds of packets a paced sender may send back to back to catch up after falling behind
+    private static final int PACING_BURST_MILLIS = Integer.getInteger("cs455.overlay.node.pacingBurstMillis", 10);
+
     private int ID;
     private String IP;
     private int portNum;
-    private ServerSocket serverSocket;
-    private TCPConnectionsCache connectionsCache;
+    private ConnectionsCache connectionsCache;
     private String registryIPportNumStr;
     private RoutingTable routingTable;
+    // next hop for every dst ID, built from the routing table when the node manifest arrives
+    private NextHopTable nextHopTable;
     private ArrayList<Integer> registeredNodeIDs;
-
-    // trackers and counters
-    private int sndTracker = 0;
-    private int rcvTracker = 0;
-    private int relayTracker = 0;
-    private long sndSummation = 0;
-    private long rcvSummation = 0;
-
-    // lock to update the trackers
-    private final Object trackersLock = new Object();
-
-    public MessagingNode(String IP, int portNum, ServerSocket serverSocket, String registryIPportNumStr) {
+    // every registered ID except this node's, so a random dst is one array index
+    private int[] dstIDs;
+
+    /*  Sends the packets of a task on threads of their own, so the registry connection's receiver thread is free for
+        the registry's probes while a run is going on. Kept for the life of the node so the trackers get the same
+        cells every run. Created with the routing table  */
+    private ExecutorService senderPool;
+    // each run's senders draw from a generator split off this one
+    private final SplittableRandom random = new SplittableRandom();
+
+    /*  trackers and counters. The sending thread and many receiver threads update these at once,
+        each through its own cell, so they don't need a lock  */
+    private final TrafficTrackers trackers = new TrafficTrackers();
+    // streams this node's stats to the registry while a run is going on. Created with the routing table
+    private LiveStatsReporter liveStatsReporter;
+
+    /*  Nodes that opened a connection to this node and sent a handshake, by ID. A handshake can arrive before this
+        node's own manifest does, so they are all kept. Guarded by this node's lock, like the two fields below  */
+    private final HashMap<Integer, Connection> handshakeConnections = new HashMap<>();
+    // routing table entries that connect to this node and haven't sent their handshake yet
+    private int numAwaitedConnections;
+    // registry connection to report the overlay setup status on once the last awaited handshake arrives, else null
+    private Connection pendingSetupStatusConnection;
+
+    public MessagingNode(String IP, int portNum, String registryIPportNumStr) {
         this.IP = IP;
         this.portNum = portNum;
-        this.serverSocket = serverSocket;
-        this.connectionsCache = new TCPConnectionsCache();
+        this.connectionsCache = new ConnectionsCache();
         this.registryIPportNumStr = registryIPportNumStr;
     }
 
@@ -54,11 +80,7 @@ public class MessagingNode implements Protocol, Node {
         return portNum;
     }
 
-    public ServerSocket getServerSocket() {
-        return serverSocket;
-    }
-
-    public TCPConnectionsCache getConnectionsCache() {
+    public ConnectionsCache getConnectionsCache() {
         return connectionsCache;
     }
 
@@ -66,36 +88,13 @@ public class MessagingNode implements Protocol, Node {
         return registryIPportNumStr;
     }
 
-    public int getSndTracker() {
-        return sndTracker;
-    }
-
-    public int getRcvTracker() {
-        return rcvTracker;
-    }
-
-    public int getRelayTracker() {
-        return relayTracker;
-    }
-
-    public long getSndSummation() {
-        return sndSummation;
-    }
-
-    public long getRcvSummation() {
-        return rcvSummation;
-    }
-
-    private void resetCounters() {
-        this.sndTracker = 0;
-        this.rcvTracker = 0;
-        this.relayTracker = 0;
-        this.sndSummation = 0;
-        this.rcvSummation = 0;
+    // Trackers and summations since the last traffic summary
+    public TrafficTrackers.Snapshot getTrackers() {
+        return trackers.snapshot();
     }
 
     @Override
-    public void onEvent(Event event, TCPConnection connection) throws IOException {
+    public void onEvent(Event event, Connection connection) throws IOException {
         switch(event.getType()) {
             case (REGISTRY_REPORTS_REGISTRATION_STATUS):
                 processRegistrationStatusResponse((RegistryReportsRegistrationStatus)event, connection);
@@ -112,13 +111,22 @@ public class MessagingNode implements Protocol, Node {
             case (OVERLAY_NODE_SENDS_DATA):
                 processNodeSendsData((OverlayNodeSendsData)event);
                 break;
+            case (OVERLAY_NODE_SENDS_DATA_BATCH):
+                processNodeSendsDataBatch((OverlayNodeSendsDataBatch)event);
+                break;
             case (REGISTRY_REQUESTS_TRAFFIC_SUMMARY):
                 processTrafficSummary(connection);
                 break;
+            case (REGISTRY_REQUESTS_DELIVERY_COUNT):
+                processDeliveryCountRequest((RegistryRequestsDeliveryCount)event, connection);
+                break;
+            case (OVERLAY_NODE_SENDS_HANDSHAKE):
+                processHandshake((OverlayNodeSendsHandshake)event, connection);
+                break;
         }
     }
 
-    private void processRegistrationStatusResponse(RegistryReportsRegistrationStatus event, TCPConnection connection) throws IOException {
+    private void processRegistrationStatusResponse(RegistryReportsRegistrationStatus event, Connection connection) throws IOException {
         if (event.getID() > -1) {
             /*  Did not cache the connection with the registry or start the sndr and rcvr threads here b/c it is already
                 done when this msging node initiates a connection w/ the registry.  */
@@ -128,7 +136,7 @@ public class MessagingNode implements Protocol, Node {
             System.out.println(event.getInfoStr());
 
             if (DEBUG) {
-                System.out.printf("Cached connection with %s using socket: %s\n", registryIPportNumStr, connection.getSocket());
+                System.out.printf("Cached connection with %s: %s\n", registryIPportNumStr, connection);
                 System.out.println("My assigned ID is: " + this.ID);
             }
         } else { // registration failure
@@ -140,7 +148,7 @@ public class MessagingNode implements Protocol, Node {
         int deregisteredID = event.getDeregisteredID();
         System.out.println(event.getInfoStr());
         System.out.printf("The deregistered ID was %d\n", deregisteredID);
-        TCPConnection removedRegistryConnection = connectionsCache.removeConnection(registryIPportNumStr);
+        Connection removedRegistryConnection = connectionsCache.removeConnection(registryIPportNumStr);
         System.out.printf("Uncached connection to Registry: %s\n", removedRegistryConnection);
     }
 
@@ -148,16 +156,15 @@ public class MessagingNode implements Protocol, Node {
     // connection is the connection to the registry, use that to send msg back to registry
     /*  Only the connection to the registry could have sent this message so connection
         int this context is the regsitry connection. Use this to send response back  */
-    private void processNodeManifest(RegistrySendsNodeManifest event, TCPConnection connection) throws IOException {
+    private void processNodeManifest(RegistrySendsNodeManifest event, Connection connection) throws IOException {
         routingTable = event.getRoutingTable();
 
         if (DEBUG) {
             // Print information about the routing table received
             System.out.println("Received node manifest from registry");
             System.out.printf("Routing table size: %d\nRouting table:\n", routingTable.size());
-            ArrayList<Integer> routingTableIDs = routingTable.getKeys();
             for (int i = 0; i < routingTable.size(); ++i) {
-                System.out.printf("Entry %d: %s\n", i + 1, routingTableIDs.get(i));
+                System.out.printf("Entry %d: %s\n", i + 1, routingTable.getID(i));
             }
         }
 
@@ -171,24 +178,113 @@ public class MessagingNode implements Protocol, Node {
         // if this ever becomes false, it means this node was not able to establish connections to all nodes in its routing table
         boolean connectionsEstablished = true;
 
-        // Establish connections with every node in the rcvd routing table. Cache the connections also
-        for(Map.Entry<Integer, String> entry : routingTable.getEntrySet()) {
+        /*  Establish connections with the nodes in the rcvd routing table that this node connects to. Cache the connections also.
+            The entries that connect to this node instead (they have this node in their table too) share that connection  */
+        for (int i = 0; i < routingTable.size(); ++i) {
+            if (routingTable.awaitsConnection(i))
+                continue;
+            // a node can be in a small overlay's table more than once, it still gets one connection
+            int firstIndex = routingTable.indexOf(routingTable.getID(i));
+            if (firstIndex < i) {
+                routingTable.setConnection(i, routingTable.getConnection(firstIndex));
+                continue;
+            }
             try {
-                String[] IPportNumArr = entry.getValue().split(":");
-                Socket socket = new Socket(IPportNumArr[0], Integer.parseInt(IPportNumArr[1]));
+                Endpoint endpoint = routingTable.getEndpoint(i);
                 // connection to a node in the routing table
-                TCPConnection routingConnection = new TCPConnection(socket, this);
-                connectionsCache.addConnection(entry.getValue(), routingConnection);
+                Connection routingConnection = Transport.current().connect(endpoint.getIP(), endpoint.getPortNum(), this);
+                // keep the connection in the routing table entry so routing never looks it up by IP:port
+                routingTable.setConnection(i, routingConnection);
+                connectionsCache.addConnection(endpoint.toString(), routingConnection);
                 /*  The rcvr and sndr thread for this node's side of the connection (pipe).
                     When the other node receives the connection request from this node,
                     they will start its their own sndr and rcvr threads for their end of the pipe  */
-                routingConnection.startSenderAndReceiverThreads();
+                routingConnection.start();
+                // tell the other node who is connecting, before anything else goes on the connection
+                routingConnection.sendEvent(new OverlayNodeSendsHandshake(this.ID));
             } catch(IOException ioe) {
                 connectionsEstablished = false;
                 break;
             }
         }
 
+        /*  The setup status is reported once every entry that connects to this node has sent its handshake. This
+            doesn't wait for them here: on the NIO transport the handshakes are read by the thread running this  */
+        synchronized (this) {
+            numAwaitedConnections = 0;
+            for (int i = 0; i < routingTable.size(); ++i) {
+                if (!routingTable.awaitsConnection(i))
+                    continue;
+                Connection handshakeConnection = handshakeConnections.get(routingTable.getID(i));
+                if (handshakeConnection != null)
+                    useHandshakeConnection(i, handshakeConnection);
+                else
+                    ++numAwaitedConnections;
+            }
+            if (!connectionsEstablished || numAwaitedConnections == 0) {
+                pendingSetupStatusConnection = null;
+                finishOverlaySetup(connectionsEstablished, connection);
+            } else {
+                pendingSetupStatusConnection = connection;
+                if (DEBUG)
+                    System.out.printf("Waiting for %d nodes in the routing table to connect\n", numAwaitedConnections);
+            }
+        }
+    }
+
+    // A node connected to this one. If it's a routing table entry this node was waiting for, the connection is used for it
+    private synchronized void processHandshake(OverlayNodeSendsHandshake event, Connection connection) {
+        int peerID = event.getID();
+        handshakeConnections.put(peerID, connection);
+        if (DEBUG)
+            System.out.printf("Node %d connected from %s\n", peerID, connection.getRemoteAddress());
+
+        // the manifest isn't here yet (it picks the handshake up when it is), or the setup status was already reported
+        if (pendingSetupStatusConnection == null)
+            return;
+        for (int i = 0; i < routingTable.size(); ++i) {
+            if (routingTable.awaitsConnection(i) && routingTable.getID(i) == peerID && routingTable.getConnection(i) == null) {
+                useHandshakeConnection(i, connection);
+                --numAwaitedConnections;
+            }
+        }
+        if (numAwaitedConnections == 0) {
+            Connection registryConnection = pendingSetupStatusConnection;
+            pendingSetupStatusConnection = null;
+            finishOverlaySetup(true, registryConnection);
+        }
+    }
+
+    // Sends on the connection the node at routing table index opened to this node
+    private void useHandshakeConnection(int index, Connection connection) {
+        routingTable.setConnection(index, connection);
+        connectionsCache.addConnection(routingTable.getEndpoint(index).toString(), connection);
+    }
+
+    /*  Every routing table entry is connected (or connecting to one failed): builds what routing needs and reports the
+        overlay setup status to the registry on connection  */
+    private void finishOverlaySetup(boolean connectionsEstablished, Connection connection) {
+        // Work out the next hop to every other node now so routing a packet is a single lookup
+        nextHopTable = new NextHopTable(routingTable, registeredNodeIDs, this.ID);
+        nextHopTable.resolveConnections(routingTable);
+
+        // connection is the registry connection, the live stats go back on it
+        liveStatsReporter = new LiveStatsReporter(this.ID, trackers, connection, routingTable);
+
+        dstIDs = buildDstIDs(registeredNodeIDs, this.ID);
+        if (senderPool == null) {
+            AtomicInteger senderNum = new AtomicInteger();
+            int nodeID = this.ID;
+            senderPool = Executors.newFixedThreadPool(SENDER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "PacketSender-" + nodeID + "-" + senderNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        if (DEBUG)
+            System.out.printf("Next hops:\n%s", nextHopTable);
+
         int status;
         String infoStr;
         if (connectionsEstablished) {
@@ -204,173 +300,222 @@ public class MessagingNode implements Protocol, Node {
             with the registry. After confirming registration, this node should have cached the connection
             and started the sender and receiver threads in the processNodeRegistrationStatusResponse() above  */
         NodeReportsOverlaySetupStatus overlaySetupStatus = new NodeReportsOverlaySetupStatus(status, infoStr);
-        connection.getSenderThread().addMessage(overlaySetupStatus.getBytes());
+        connection.sendEvent(overlaySetupStatus);
     }
 
-    private int selectRandomDstID() {
-        // choose a random ID from the list of all registered nodes
-        Random r = new Random();
-        // random index between 0 and registeredNodeIDs.size() - 1
-        int randIndex = r.nextInt(registeredNodeIDs.size());
-        // use randIndex to retrieve a node to send a packet to
-        int dstID = registeredNodeIDs.get(randIndex);
-
-        // ensure a node does not choose to send msgs to itself
-        while (dstID == this.ID) {
-            randIndex = r.nextInt(registeredNodeIDs.size());
-            dstID = registeredNodeIDs.get(randIndex);
+    // Public so the benchmarks can build the same array
+    public static int[] buildDstIDs(ArrayList<Integer> registeredNodeIDs, int selfID) {
+        int[] dstIDs = new int[registeredNodeIDs.size() - 1];
+        int numDstIDs = 0;
+        for (int ID : registeredNodeIDs) {
+            // a node never sends msgs to itself
+            if (ID != selfID)
+                dstIDs[numDstIDs++] = ID;
         }
-        return dstID;
+        return dstIDs;
     }
 
-    //  Finds the closest node to the given dst ID and returns the connection to it
-    /*  Sort the routing table in ascending order so there is no need to deal
-        w/ ID space wrap-around. Once sorted, we can just look for the largest
-        ID that is less than the destination ID, and that is the closest node.
-        Special case for when no IDs less than destination ID are found. See comments below.  */
-    private TCPConnection findClosestNode(int dstID, Event event) {
-        // Get the IDs in the routing table and sort them
-        ArrayList<Integer> sortedIDs = routingTable.getKeys();
-        Collections.sort(sortedIDs);
-
-        // Store connection to closest node; relay packet to node on other end of this connection
-        TCPConnection routingConnection;
-        int closestID = -1;
-        int largestID = Integer.MIN_VALUE;
-        for (int id : sortedIDs) {
-            if (id > largestID)
-                largestID = id;
-
-            //  Since the IDs are sorted in ascending order, by the end of this loop,
-            //  we will have the largest node ID that is less than the destination ID.
-            //  This prevents us from overshooting the destination
-            if (id < dstID)
-                closestID = id;
-        }
+    // Public so the benchmarks can time it. Every ID in dstIDs is equally likely
+    public static int selectRandomDstID(int[] dstIDs, SplittableRandom random) {
+        return dstIDs[random.nextInt(dstIDs.length)];
+    }
 
-        /*  closestID can only be -1 if there was no ID in the routing table was
-            less than the dstID. In this case, we have a special wrap-around case
-            where the dst must be between two nodes with greater IDs. Therefore,
-            the closest node will be the largest node ID.
-            Ex.) nodes: [0, 21, 31, 36, 42, 81, 90, 102, 116, 117] | src: 102 | dst: 0
-                 Will not find any ID < 0. This means we have wrapped-around and
-                 the closest node to 0 is the largest ID (i.e. 117)  */
-        if (closestID == -1)
-            closestID = largestID;
+    /*  Splits the packets between the sender threads and returns right away, so the registry's delivery count probes
+        and anything else on the registry connection are answered while this node sends.
+        The last sender to finish reports task finished  */
+    private void processTaskInitiate(RegistryRequestsTaskInitiate event, Connection connection) throws IOException {
+        int packetsPerSecond = event.getPacketsPerSecond();
+        if (packetsPerSecond > 0)
+            System.out.printf("Task initiate received. Starting to send %d packets at %d packets/sec on %d threads\n", event.getNumPacketsToSend(), packetsPerSecond, SENDER_THREADS);
+        else
+            System.out.printf("Task initiate received. Starting to send %d packets on %d threads\n", event.getNumPacketsToSend(), SENDER_THREADS);
 
-        if (DEBUG) {
-            if (event instanceof OverlayNodeSendsData) {
-                OverlayNodeSendsData sendsData = (OverlayNodeSendsData)event;
-                System.out.printf("My ID: %d\nList of all nodes: %s\nSrc: %d\nDst: %d\nRouting to: %d\nRouting Trace: %s\n\n",
-                        this.ID, registeredNodeIDs.toString(), sendsData.getSrcID(), sendsData.getDstID(), closestID, sendsData.getRoutingTrace().toString());
-            } else {
-                System.out.printf("My ID: %d\nList of all nodes: %s\nSrc: %d\nDst: %d\nRouting to: %d\nRouting Trace: %s\n\n",
-                        this.ID, registeredNodeIDs.toString(), this.ID, dstID, closestID, (new ArrayList<Integer>()).toString());
+        // report stats until the traffic summary, so the relaying after this node is done sending shows up too
+        liveStatsReporter.start();
+
+        // Begin sending msgs
+        int numRounds = event.getNumPacketsToSend();
+        long startTime = System.nanoTime();
+        AtomicInteger sendersRunning = new AtomicInteger(SENDER_THREADS);
+        for (int sender = 0; sender < SENDER_THREADS; ++sender) {
+            // the first numRounds % SENDER_THREADS senders send one extra packet
+            int senderRounds = numRounds / SENDER_THREADS + (sender < numRounds % SENDER_THREADS ? 1 : 0);
+            // SplittableRandom isn't thread safe, each sender gets its own
+            SplittableRandom senderRandom = random.split();
+            // each sender paces its share of the rate
+            TokenBucket pacer = null;
+            if (packetsPerSecond > 0) {
+                double senderRate = (double) packetsPerSecond / SENDER_THREADS;
+                pacer = new TokenBucket(senderRate, (int) Math.max(1, senderRate * PACING_BURST_MILLIS / 1000));
             }
+            TokenBucket senderPacer = pacer;
+            senderPool.execute(() -> {
+                try {
+                    sendPackets(senderRounds, senderRandom, senderPacer);
+                } catch (RuntimeException e) {
+                    System.err.println("Sender thread failed");
+                    e.printStackTrace();
+                } finally {
+                    // Done sending messages, so send task finished message to registry
+                    if (sendersRunning.decrementAndGet() == 0)
+                        reportTaskFinished(numRounds, startTime, connection);
+                }
+            });
         }
-
-        String closestIPportNumStr = routingTable.getEntry(closestID);
-        routingConnection = connectionsCache.getConnection(closestIPportNumStr);
-        return routingConnection;
     }
 
-    private void processTaskInitiate(RegistryRequestsTaskInitiate event, TCPConnection connection) throws IOException {
-        System.out.printf("Task initiate received. Starting to send %d packets\n", event.getNumPacketsToSend());
-
-        // Begin sending msgs
-        int numRounds = event.getNumPacketsToSend();
+    /*  Runs on a sender thread. pacer is null if the packets are sent as fast as possible.
+        Unless batching is off, the packets are collected in a batch per next hop (see OverlayNodeSendsDataBatch).
+        A paced sender sends its batches whenever it has to wait for the next packet, so pacing doesn't hold packets
+        back until a batch fills  */
+    private void sendPackets(int numRounds, SplittableRandom random, TokenBucket pacer) {
+        NextHopBatches batches = OverlayNodeSendsDataBatch.MAX_PACKETS > 1 ? new NextHopBatches(nextHopTable, false) : null;
         for (int round = 0; round < numRounds; ++round) {
+            if (batches != null && pacer != null && !pacer.isTokenDue())
+                batches.flush();
+            // wait until the packet is due; its latency counts from then
+            long dueNanos = pacer != null ? pacer.acquire() : 0;
+
             // Choose a random node to send data to
-            int dstID = selectRandomDstID();
+            int dstID = selectRandomDstID(dstIDs, random);
 
-            TCPConnection routingConnection;
-            if (routingTable.contains(dstID)) { // dst is in routing table
-                String IPportNumStr = routingTable.getEntry(dstID);
+            // Send packet to the next node with a random int (-2mil to 2mil) as the payload
+            int payload = random.nextInt();
 
-                if (DEBUG && numRounds < 50)
-                    System.out.printf("Node (%d) is in my routing table. Sending data to %s\n", dstID, IPportNumStr);
+            // Update the send trackers and summations for this node
+            trackers.recordSent(payload);
 
-                // Retrieve the connection to the dst node
-                routingConnection = connectionsCache.getConnection(IPportNumStr);
-            } else { // dst is not in routing table
-                // find closest node to route data to
-                routingConnection = findClosestNode(dstID, event);
-            }
+            // stamp the packet with the time it was sent if the sinks should record its latency
+            long originTimestamp = OverlayNodeSendsData.NO_TIMESTAMP;
+            if (OverlayNodeSendsData.TIMESTAMPS)
+                originTimestamp = pacer != null ? OverlayNodeSendsData.timestampMicros(dueNanos) : OverlayNodeSendsData.timestampMicros();
+            OverlayNodeSendsData nodeSendsData = new OverlayNodeSendsData(dstID, this.ID, payload, OverlayNodeSendsData.EMPTY_ROUTING_TRACE,
+                    OverlayNodeSendsData.COMPACT_TRACE, originTimestamp);
 
-            // Send packet to the next node with a random int (-2mil to 2mil) as the payload
-            Random r = new Random();
-            int payload = r.nextInt();
-
-            /*  Update the send trackers and summations for this node.
-                Don't need to sync this because only one thread is sending the messages.
-                This is different from the relay counter because only this node's sender thread
-                can send messages, whereas many of this node's receiver threads could be relaying
-                messages to different destinations at the same time  */
-            ++this.sndTracker;
-            this.sndSummation += payload;
-
-            OverlayNodeSendsData nodeSendsData = new OverlayNodeSendsData(dstID, this.ID, payload, new ArrayList<>());
-            routingConnection.getSenderThread().addMessage(nodeSendsData.getBytes());
+            if (batches != null) {
+                // goes out with the next packets for the same next hop
+                batches.add(dstID, nodeSendsData);
+            } else {
+                // Retrieve the connection to the dst node, or to the closest node to it if it's not in the routing table
+                Connection routingConnection = nextHopTable.getNextHop(dstID);
+                routingConnection.sendEvent(nodeSendsData);
+            }
         }
+        if (batches != null)
+            batches.flush();
+    }
 
-        // Done sending messages, so send task finished message to registry
-        System.out.println("Finished sending messages, reporting task finished to Registry...");
+    private void reportTaskFinished(int numRounds, long startTime, Connection connection) {
+        double elapsedSecs = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Finished sending %d messages in %.3f s (%.0f msgs/sec), reporting task finished to Registry...\n",
+                numRounds, elapsedSecs, numRounds / elapsedSecs);
         OverlayNodeReportsTaskFinished taskFinished = new OverlayNodeReportsTaskFinished(this.IP, this.portNum, this.ID);
-        connection.getSenderThread().addMessage(taskFinished.getBytes());
+        connection.sendEvent(taskFinished);
     }
 
     private void processNodeSendsData(OverlayNodeSendsData event) throws IOException {
+        /*  event can be a flyweight view over the receiver's buffer (see EventFactory), so only read the fields
+            that are needed; the sink only needs the dst, payload, trace length and timestamp, a relay only needs the dst  */
         int dstID = event.getDstID();
-        int srcID = event.getSrcID();
-        int payload = event.getPayload();
-        ArrayList<Integer> routingTrace = event.getRoutingTrace();
 
         // will hold connection that we should route packet to
-        TCPConnection routingConnection;
+        Connection routingConnection;
 
         if (dstID == this.ID) {
             // this is the dst
-            // update trackers and summations
-            synchronized(trackersLock) {
-                ++this.rcvTracker;
-                this.rcvSummation += payload;
-            }
-        } else if (routingTable.contains(dstID)){
-            // dst is in routing table
-            routingConnection = connectionsCache.getConnection(routingTable.getEntry(dstID));
-
-            /*  Many receiver threads could be relaying messages from multiple connections at once
-                Only allow one thread at a time to modify the relayTracker  */
-            synchronized (trackersLock) {
-                ++this.relayTracker;
-            }
-
-            routingTrace.add(this.ID);
-
-            OverlayNodeSendsData nodeSendsData = new OverlayNodeSendsData(dstID, srcID, payload, routingTrace);
-            routingConnection.getSenderThread().addMessage(nodeSendsData.getBytes());
+            // update trackers and summations, and the hop count (the relays + the last hop) and latency histograms
+            long latencyMicros = event.hasTimestamp() ? OverlayNodeSendsData.timestampMicros() - event.getOriginTimestamp() : -1;
+            trackers.recordReceived(event.getPayload(), event.getRoutingTraceLength() + 1, Math.max(latencyMicros, -1));
         } else {
-            // dst is not in routing table; choose closest node
-            routingConnection = findClosestNode(dstID, event);
+            /*  Relay fast path: the dst is all that is needed to pick the next hop. The received msg is forwarded
+                as is with this node's ID appended to its routing trace, without decoding it into a new msg.
+                Don't have to check if this is the src node b/c once a msg gets sent, it should never arrv back at the src  */
+            // connection to the dst if it is in the routing table, otherwise to the closest node to it
+            routingConnection = nextHopTable.getNextHop(dstID);
 
-            // don't have to check if this is the src node b/c once a msg gets sent, it should never arrv back at the src
-            // and since this is also not the sink for the msg, this node is relaying a msg, so add this ID to the routing trace
-            // also update the relayTracker
-            routingTrace.add(this.ID);
+            /*  Many receiver threads could be relaying messages from multiple connections at once.
+                Each updates its own cell of the trackers, so relays never wait on each other  */
+            trackers.recordRelayed();
 
-            synchronized (trackersLock) {
-                ++this.relayTracker;
-            }
+            routingConnection.relayMessage(event.relayedBy(this.ID));
+        }
+    }
 
-            OverlayNodeSendsData nodeSendsData = new OverlayNodeSendsData(dstID, srcID, payload, routingTrace);
-            routingConnection.getSenderThread().addMessage(nodeSendsData.getBytes());
+    /*  Goes through the packets of a batch in one loop, each the same as processNodeSendsData() would. The packets
+        to relay are copied into batches for their next hops as they come, which are sent once the whole batch has
+        been gone through  */
+    private void processNodeSendsDataBatch(OverlayNodeSendsDataBatch batch) throws IOException {
+        NextHopBatches relayBatches = null;
+        OverlayNodeSendsData packet;
+        while ((packet = batch.nextPacket()) != null) {
+            int dstID = packet.getDstID();
+            if (dstID == this.ID) {
+                long latencyMicros = packet.hasTimestamp() ? OverlayNodeSendsData.timestampMicros() - packet.getOriginTimestamp() : -1;
+                trackers.recordReceived(packet.getPayload(), packet.getRoutingTraceLength() + 1, Math.max(latencyMicros, -1));
+            } else {
+                if (relayBatches == null)
+                    relayBatches = new NextHopBatches(nextHopTable, true);
+                trackers.recordRelayed();
+                relayBatches.addRelayed(dstID, packet, this.ID);
+            }
         }
+        if (relayBatches != null)
+            relayBatches.flush();
+    }
+
+    // The registry is checking if the overlay is drained. Report the counts so far without resetting the trackers
+    private void processDeliveryCountRequest(RegistryRequestsDeliveryCount event, Connection connection) {
+        TrafficTrackers.Snapshot totals = trackers.snapshot();
+        connection.sendEvent(new OverlayNodeReportsDeliveryCount(event.getRound(), this.ID, totals.getSndTracker(), totals.getRcvTracker()));
+    }
+
+    private void processTrafficSummary(Connection connection) throws IOException {
+        // the run is over
+        liveStatsReporter.stop();
+
+        // read and reset the trackers in one step so a packet counted in between can't be lost
+        TrafficTrackers.Snapshot totals = trackers.snapshotAndReset();
+        OverlayNodeReportsTrafficSummary trafficSummary = new OverlayNodeReportsTrafficSummary(this.ID, totals.getSndTracker(), totals.getRelayTracker(),
+                totals.getSndSummation(), totals.getRcvTracker(), totals.getRcvSummation(), totals.getHopHistogram(), totals.getLatencyHistogram());
+        connection.sendEvent(trafficSummary);
     }
 
-    private void processTrafficSummary(TCPConnection connection) throws IOException {
-        OverlayNodeReportsTrafficSummary trafficSummary = new OverlayNodeReportsTrafficSummary(this.ID, this.sndTracker, this.relayTracker, this.sndSummation, this.rcvTracker, this.rcvSummation);
-        resetCounters();
-        connection.getSenderThread().addMessage(trafficSummary.getBytes());
+    /*  Has the node listen on any port, over the transport selected by TransportMode, then connects to the registry
+        and sends a registration request. The registry's response arrives on the connection's receiver thread.
+        Used by main() and by in-process harnesses  */
+    public static MessagingNode launch(String IP, String registryIP, int registryPortNum) throws IOException {
+        // IP and portNum of registry converted to a string
+        String registryIPportNumStr = registryIP + ':' + registryPortNum;
+
+        // create messenger node. It only learns its portNum once it is listening
+        MessagingNode msgNode = new MessagingNode(IP, 0, registryIPportNumStr);
+        msgNode.portNum = Transport.current().listen(0, msgNode);
+        System.out.println("Node listening on port: " + msgNode.portNum);
+
+        /*  Initiate a connection to registry to send a registration request.
+            Create a Connection to store the info about the connection
+            This allows reuse of the created socket for subsequent communication
+            The node is passed in b/c the TCPReceiverThread will use it to call
+            the node's onEvent() function after reconstructing a received msg  */
+        Connection registryConnection = Transport.current().connect(registryIP, registryPortNum, msgNode);
+
+        /*  Start the sender and receiver threads for this connection so the user
+            can enter commands while this node is sending and receiving msgs  */
+        registryConnection.start();
+
+        /*  Add the connection to the registry into this node's connection cache
+            This will allow us to fetch the connection later when we need to talk
+            to the registry again  */
+        msgNode.getConnectionsCache().addConnection(registryIPportNumStr, registryConnection);
+
+        // create registration request msg
+        OverlayNodeSendsRegistration nodeRegistration = new OverlayNodeSendsRegistration(msgNode.IP, msgNode.portNum);
+
+        // Retrieve the sender thread of this connection and queue a msg to be sent
+        registryConnection.sendEvent(nodeRegistration);
+        System.out.printf("Sending reg req to regsitry on connection: %s\n", registryConnection);
+
+        return msgNode;
     }
 
     public static void main(String[] args) {
@@ -395,45 +540,8 @@ public class MessagingNode implements Protocol, Node {
             String IP = inetInfo.getHostAddress();
             System.out.println("IP addr: " + IP);
 
-            ServerSocket serverSocket;
             try {
-                // Create the server socket and have it listen on any port
-                serverSocket = new ServerSocket(0);
-
-                // IP and portNum of registry converted to a string
-                String registryIPportNumStr = args[0] + ':' + args[1];
-
-                // create messenger node
-                MessagingNode msgNode = new MessagingNode(IP, serverSocket.getLocalPort(), serverSocket, registryIPportNumStr);
-
-                // start the server of the msging node in a different thread so it can do other tasks while listening for connections
-                (new Thread(new TCPServerThread(msgNode))).start();
-                System.out.println("Node listening on port: " + serverSocket.getLocalPort());
-
-                // Initiate a connection to registry to send a registration request
-                Socket commSocket = new Socket(args[0], Integer.parseInt(args[1]));
-
-                /*  Create a TCPConnection to store the info about the connection
-                    This allows reuse of the created socket for subsequent communication
-                    The node is passed in b/c the TCPReceiverThread will use it to call
-                    the node's onEvent() function after reconstructing a received msg  */
-                TCPConnection registryConnection = new TCPConnection(commSocket, msgNode);
-
-                /*  Start the sender and receiver threads for this connection so the user
-                    can enter commands while this node is sending and receiving msgs  */
-                registryConnection.startSenderAndReceiverThreads();
-
-                /*  Add the connection to the registry into this node's connection cache
-                    This will allow us to fetch the connection later when we need to talk
-                    to the registry again  */
-                msgNode.getConnectionsCache().addConnection(registryIPportNumStr, registryConnection);
-
-                // create registration request msg
-                OverlayNodeSendsRegistration nodeRegistration = new OverlayNodeSendsRegistration(msgNode.IP, msgNode.portNum);
-
-                // Retrieve the sender thread of this connection and queue a msg to be sent
-                registryConnection.getSenderThread().addMessage(nodeRegistration.getBytes());
-                System.out.printf("Sending reg req to regsitry on socket: %s\n", commSocket);
+                MessagingNode msgNode = launch(IP, args[0], Integer.parseInt(args[1]));
 
                 InteractiveCommandParser commandParser = new InteractiveCommandParser(msgNode);
                 Scanner sc = new Scanner(System.in);
@@ -1,31 +1,45 @@
 package cs455.overlay.node;
 
+import cs455.overlay.routing.Endpoint;
+import cs455.overlay.routing.Membership;
 import cs455.overlay.routing.RoutingTable;
-import cs455.overlay.transport.TCPConnection;
-import cs455.overlay.transport.TCPConnectionsCache;
-import cs455.overlay.transport.TCPServerThread;
+import cs455.overlay.transport.Connection;
+import cs455.overlay.transport.ConnectionsCache;
+import cs455.overlay.transport.Transport;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LiveStatsMonitor;
+import cs455.overlay.util.LiveStatsReporter;
 import cs455.overlay.util.StatisticsCollectorAndDisplay;
 import cs455.overlay.wireformats.*;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Registry implements Protocol, Node {
-    private boolean DEBUG = true;
+    /*  Prints a line for every registration, deregistration, finished node and delivery probe.
+        Off unless -Dcs455.overlay.registry.debug=true, a registration storm would be timing the console  */
+    private boolean DEBUG = Boolean.getBoolean("cs455.overlay.registry.debug");
+
+    /*  Once every node has finished sending, the registry probes the nodes' delivery counts until every packet sent
+        has been received, then requests the traffic summaries. Probes that find packets still being relayed are
+        retried after a delay that doubles from the initial delay up to the max.
+        -Dcs455.overlay.registry.probeInitialDelayMillis (default 1), -Dcs455.overlay.registry.probeMaxDelayMillis (default 100)  */
+    private static final long PROBE_INITIAL_DELAY_MILLIS = Long.getLong("cs455.overlay.registry.probeInitialDelayMillis", 1);
+    private static final long PROBE_MAX_DELAY_MILLIS = Long.getLong("cs455.overlay.registry.probeMaxDelayMillis", 100);
 
     private int portNum;
-    /*  Integer will be IDs of the registered nodes and String will be a string representation of IP and portNum of registered node.
-        Access to map will be syncd since registry could rcv many registration/deregistration requests at once  */
-    private TreeMap<Integer, String> registeredNodes = new TreeMap<>();
+    /*  IDs of the registered nodes and the IP and portNum each one listens on, indexed both ways. Concurrent,
+        since registry could rcv many registration/deregistration requests at once  */
+    private Membership registeredNodes = new Membership();
     // store sockets used to communicate with other nodes so we dont have to create a new socket for each communication (snd/rcv)
-    private TCPConnectionsCache connectionsCache;
-    private ServerSocket serverSocket;
+    private ConnectionsCache connectionsCache;
 
-    // Routing table for each node ID
-    private TreeMap<Integer, RoutingTable> nodeRoutingTables = new TreeMap<>();
+    // Routing table for each node ID. Concurrent b/c deregistrations remove tables while other requests are handled
+    private ConcurrentSkipListMap<Integer, RoutingTable> nodeRoutingTables = new ConcurrentSkipListMap<>();
 
     private int numNodesRegistered; // set when setup-overlay is initiated
     private int numNodesEstablishedConnections = 0;
@@ -36,26 +50,43 @@ public class Registry implements Protocol, Node {
     // Counters for the traffic summaries nodes will send back
     private int numTrafficSummariesRcvd = 0;
 
+    /*  Delivery count probing. Answers are only counted for the current round, so a late answer to an earlier
+        probe can't be mixed into the totals  */
+    private int probeRound = 0;
+    private long probeDelayMillis;
+    private int numDeliveryCountsRcvd;
+    private long probedPacketsSent;
+    private long probedPacketsRcvd;
+    /*  runs the delayed probes, so no registry thread sleeps while the overlay drains,
+        and prints the live stats every interval  */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RegistryTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private StatisticsCollectorAndDisplay statCollector = new StatisticsCollectorAndDisplay();
+    // rolling view of the overlay built from the live stats nodes stream in during a run
+    private LiveStatsMonitor liveStatsMonitor = new LiveStatsMonitor();
 
-    public Registry(int portNum, ServerSocket serverSocket) {
+    public Registry(int portNum) {
         this.portNum = portNum;
-        this.serverSocket = serverSocket;
-        this.connectionsCache = new TCPConnectionsCache();
+        this.connectionsCache = new ConnectionsCache();
     }
 
-    public TreeMap<Integer, String> getRegisteredNodes() { return registeredNodes; }
+    // Registered nodes in ID order. Read only, nodes are only registered and deregistered by their requests
+    public ConcurrentSkipListMap<Integer, Endpoint> getRegisteredNodes() { return registeredNodes.getNodes(); }
 
-    public TreeMap<Integer, RoutingTable> getNodeRoutingTables() {
+    public ConcurrentSkipListMap<Integer, RoutingTable> getNodeRoutingTables() {
         return nodeRoutingTables;
     }
 
-    public TCPConnectionsCache getConnectionsCache() {
+    public ConnectionsCache getConnectionsCache() {
         return connectionsCache;
     }
 
-    public ServerSocket getServerSocket() {
-        return serverSocket;
+    public int getPortNum() {
+        return portNum;
     }
 
     public int getNumNodesRegistered() {
@@ -66,12 +97,22 @@ public class Registry implements Protocol, Node {
         this.numNodesRegistered = numNodesRegistered;
     }
 
-    public int getNumNodesEstablishedConnections() {
+    // Syncd b/c the counter is updated by the receiver threads while the overlay is being setup
+    public synchronized int getNumNodesEstablishedConnections() {
         return numNodesEstablishedConnections;
     }
 
+    // Nodes registered so far, unlike numNodesRegistered which is only set once setup-overlay is run
+    public int getNumRegisteredNodes() {
+        return registeredNodes.size();
+    }
+
+    public StatisticsCollectorAndDisplay getStatCollector() {
+        return statCollector;
+    }
+
     @Override
-    public void onEvent(Event event, TCPConnection connection) throws IOException {
+    public void onEvent(Event event, Connection connection) throws IOException {
         switch(event.getType()) {
             case (OVERLAY_NODE_SENDS_REGISTRATION):
                 registerNode((OverlayNodeSendsRegistration)event, connection);
@@ -88,49 +129,42 @@ public class Registry implements Protocol, Node {
             case (OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY):
                 processTrafficSummary((OverlayNodeReportsTrafficSummary)event);
                 break;
+            case (OVERLAY_NODE_REPORTS_DELIVERY_COUNT):
+                processDeliveryCount((OverlayNodeReportsDeliveryCount)event);
+                break;
+            case (OVERLAY_NODE_REPORTS_LIVE_STATS):
+                liveStatsMonitor.addLiveStats((OverlayNodeReportsLiveStats)event);
+                break;
         }
     }
 
-    // Selects a unique ID for the msging node btwn 0-127
-    private int assignID() {
-        Random r = new Random();
-        int ID = r.nextInt(128);
-        while (registeredNodes.containsKey(ID)) {
-            ID = r.nextInt(128);
-        }
-        return ID;
+    // Valid request if IP in packet matches IP of the connection
+    private boolean validOrigin(String IP, Connection connection) {
+        String connectionIP = connection.getRemoteIP();
+        return connectionIP.equals(IP);
     }
 
-    /*  Valid registration if node has not been previously registered (i.e. same IP and port)
-        and IP in packet matches IP of the connection  */
-    private boolean validRegistration(String IP, int portNum, TCPConnection connection) {
-        String IPportNumStr = IP + ':' + portNum;
-        String connectionIP = connection.getSocket().getInetAddress().getHostAddress();
-        return !registeredNodes.containsValue(IPportNumStr) && connectionIP.equals(IP);
-    }
+    /*  Not syncd, the membership is concurrent: requests on different connections are handled at the same time, and
+        a node that has been previously registered (i.e. same IP and port) is turned down by registeredNodes.register()  */
+    private void registerNode(OverlayNodeSendsRegistration event, Connection connection) throws IOException {
+        // IP and portNum of msging node. Its IP:port string is the key into the connections cache
+        Endpoint endpoint = new Endpoint(event.getIP(), event.getPortNum());
 
-    private synchronized void registerNode(OverlayNodeSendsRegistration event, TCPConnection connection) throws IOException {
-        int ID = assignID();
-        // create a string to represent the IP and portNum of msging node. use this as key into HashMap
-        String IPportNumStr = event.getIP() + ':' + event.getPortNum();
+        // register the msging node, it gets a unique ID from the endpoint it listens on (see IDSpace)
+        int ID = validOrigin(event.getIP(), connection) ? registeredNodes.register(endpoint) : -1;
 
         // Info on outcome of registration (i.e. success or failure)
         String infoStr;
 
-        if (validRegistration(event.getIP(), event.getPortNum(), connection)) {
-            ++this.numNodesRegistered;
-
-            // register the msging node
-            registeredNodes.put(ID, IPportNumStr);
-
+        if (ID != -1) {
             infoStr = "Registration request successful. The number of messaging nodes currently constituting " +
                     "the overlay is (" + registeredNodes.size() + ")";
 
             // add the connection into the registry's connection cache, so we can use it for communication later
-            connectionsCache.addConnection(IPportNumStr, connection);
+            connectionsCache.addConnection(endpoint.toString(), connection);
 
             if (DEBUG)
-                System.out.printf("Registered node from %s, ID is %d\n", registeredNodes.get(ID), ID);
+                System.out.printf("Registered node from %s, ID is %d\n", endpoint, ID);
         } else { // invalid registration request
             // TODO: TEST IF IT WILL FAIL IF WE TRY TO REGISTER A NODE MORE THAN ONCE. JUST CODE SEND A REG REQ TWICE IN THE MSG NODE
             ID = -1; // failure ID
@@ -140,44 +174,41 @@ public class Registry implements Protocol, Node {
         }
 
         RegistryReportsRegistrationStatus registrationStatus = new RegistryReportsRegistrationStatus(ID, infoStr);
-        connection.getSenderThread().addMessage(registrationStatus.getBytes());
-    }
-
-    /*  Valid deregistration if node ID is in the registry and IP in packet matches IP of the connection  */
-    private boolean validDeregistration(String IP, int IDtoRemove, TCPConnection connection) {
-        String connectionIP = connection.getSocket().getInetAddress().getHostAddress();
-        return registeredNodes.containsKey(IDtoRemove) && connectionIP.equals(IP);
+        connection.sendEvent(registrationStatus);
     }
 
-    private synchronized void deregisterNode(OverlayNodeSendsDeregistration event, TCPConnection connection) throws IOException {
+    /*  Valid deregistration if node ID is registered to the IP and port in the packet and that IP matches IP of the
+        connection. Not syncd, see registerNode()  */
+    private void deregisterNode(OverlayNodeSendsDeregistration event, Connection connection) throws IOException {
         int idToRemove = event.getNodeID();
+        Endpoint removedEndpoint = new Endpoint(event.getIP(), event.getPortNum());
         String infoStr;
-        Socket connectionSocket = connection.getSocket();
 
-        // if getting the node with idToRemove returns null, node doesn't exist in registry anymore, so can't deregister
-        if (validDeregistration(event.getIP(), idToRemove, connection)) {
-            String removedIPportNumStr = registeredNodes.remove(idToRemove);
+        // fails if the node with idToRemove doesn't exist in registry anymore (or is another node), so can't deregister
+        if (validOrigin(event.getIP(), connection) && registeredNodes.deregister(idToRemove, removedEndpoint)) {
             RoutingTable removedTable = nodeRoutingTables.remove(idToRemove);
 
-            // remove the registry's connection (socket) from the connectionsCache
-            String IPportNumStr = connectionSocket.getInetAddress().getHostAddress() + ':' + connectionSocket.getPort();
-            connectionsCache.removeConnection(IPportNumStr);
+            /*  remove the registry's connection (socket) from the connectionsCache. It is cached under the IP:port
+                the node listens on, not the ephemeral port of the socket it connected to the registry from  */
+            connectionsCache.removeConnection(removedEndpoint.toString());
 
-            System.out.printf("Removed node with ID [%d] and IP:port [%s] from registeredNodes\n" +
-                    "Removed its entry in the routing table list as well:\n%s", idToRemove, removedIPportNumStr, removedTable);
+            if (DEBUG)
+                System.out.printf("Removed node with ID [%d] and IP:port [%s] from registeredNodes\n" +
+                        "Removed its entry in the routing table list as well:\n%s", idToRemove, removedEndpoint, removedTable);
 
             infoStr = "Deregistration request successful. The number of messaging nodes currently constituting " +
                     "the overlay is (" + registeredNodes.size() + ")";
 
             RegistryReportsDeregistrationStatus deregistrationStatus = new RegistryReportsDeregistrationStatus(idToRemove, infoStr);
-            connection.getSenderThread().addMessage(deregistrationStatus.getBytes());
+            connection.sendEvent(deregistrationStatus);
 
         } else { // invalid deregistration request
             infoStr = "Deregistration request failed. The node was (1) not registered in the system or (i.e. deregistered already or was never registered) " +
                     "(2) the IP address in the request did not match the IP address of the origin";
 
-            RegistryReportsDeregistrationStatus deregistrationStatus = new RegistryReportsDeregistrationStatus(idToRemove, infoStr);
-            connection.getSenderThread().addMessage(deregistrationStatus.getBytes());
+            // failure ID, like a failed registration
+            RegistryReportsDeregistrationStatus deregistrationStatus = new RegistryReportsDeregistrationStatus(-1, infoStr);
+            connection.sendEvent(deregistrationStatus);
         }
     }
 
@@ -209,36 +240,73 @@ public class Registry implements Protocol, Node {
         // compare numNodesRegistered and numNodesFinishedSending
         if (numNodesFinishedSending == numNodesRegistered) {
             System.out.printf("All messaging nodes have finished sending messages...\n" +
-                    "Waiting 30 seconds before retrieving traffic summaries from messaging nodes...\n\n");
-            try {
-                Thread.sleep(30000);
-            } catch (InterruptedException ie) {
-                System.out.println("Thread was interrupted");
-                ie.printStackTrace();
-                System.exit(1);
-            }
-
-            RegistryRequestsTrafficSummary trafficSummary = new RegistryRequestsTrafficSummary();
-            for (Map.Entry<Integer, String> entry : registeredNodes.entrySet()) {
-                /*  Get the IP and portNum for the registered node so we can retrieve the
-                    connection associated with that node. Send the message through that connection  */
-                String IPportNumStr = entry.getValue();
-                TCPConnection connection = connectionsCache.getConnection(IPportNumStr);
-                connection.getSenderThread().addMessage(trafficSummary.getBytes());
-            }
+                    "Waiting for the packets still being relayed to arrive before retrieving traffic summaries from messaging nodes...\n\n");
 
             // Reset so we can request another traffic summary if we want
             // the nodes to send messages again
             numNodesFinishedSending = 0;
+
+            // the overlay may well be drained already, so probe right away
+            probeDelayMillis = PROBE_INITIAL_DELAY_MILLIS;
+            requestDeliveryCounts();
         }
     }
 
-    private void processTrafficSummary(OverlayNodeReportsTrafficSummary event) {
+    // Sends event to every registered node through the connection the node registered on
+    private void sendToRegisteredNodes(Event event) {
+        for (Map.Entry<Integer, Endpoint> entry : registeredNodes.getNodes().entrySet()) {
+            /*  Get the IP and portNum for the registered node so we can retrieve the
+                connection associated with that node. Send the message through that connection  */
+            Endpoint endpoint = entry.getValue();
+            Connection connection = connectionsCache.getConnection(endpoint.toString());
+            connection.sendEvent(event);
+        }
+    }
+
+    // Starts a new probe round. Syncd b/c it is called from the probe timer as well as from the receiver threads
+    private synchronized void requestDeliveryCounts() {
+        ++probeRound;
+        numDeliveryCountsRcvd = 0;
+        probedPacketsSent = 0;
+        probedPacketsRcvd = 0;
+        sendToRegisteredNodes(new RegistryRequestsDeliveryCount(probeRound));
+    }
+
+    /*  Every node has finished sending, so the packets sent can't change anymore. Once the packets received add up to
+        them, nothing is left in flight and the traffic summaries can be requested  */
+    private synchronized void processDeliveryCount(OverlayNodeReportsDeliveryCount event) {
+        if (event.getRound() != probeRound)
+            return;
+
+        probedPacketsSent += event.getPacketsSent();
+        probedPacketsRcvd += event.getPacketsRcvd();
+        ++numDeliveryCountsRcvd;
+
+        if (numDeliveryCountsRcvd < numNodesRegistered)
+            return;
+
+        if (probedPacketsRcvd == probedPacketsSent) {
+            if (DEBUG)
+                System.out.printf("All %d packets were delivered (probe round %d), retrieving traffic summaries...\n", probedPacketsSent, probeRound);
+            sendToRegisteredNodes(new RegistryRequestsTrafficSummary());
+            return;
+        }
+
+        if (DEBUG)
+            System.out.printf("%d of %d packets delivered, probing again in %d ms\n", probedPacketsRcvd, probedPacketsSent, probeDelayMillis);
+        timer.schedule(this::requestDeliveryCounts, probeDelayMillis, TimeUnit.MILLISECONDS);
+        probeDelayMillis = Math.min(probeDelayMillis * 2, PROBE_MAX_DELAY_MILLIS);
+    }
+
+    // Syncd b/c with the blocking transport each node's summary arrives on its own receiver thread
+    private synchronized void processTrafficSummary(OverlayNodeReportsTrafficSummary event) {
         statCollector.addTrafficSummary(event);
         ++numTrafficSummariesRcvd;
 
         if (numTrafficSummariesRcvd == numNodesRegistered) {
             statCollector.printTrafficSummary();
+            // the nodes stopped streaming, start the next run's live view from scratch
+            liveStatsMonitor.clear();
 
             // reset this so we can print the correct traffic summaries for successive runs
             numTrafficSummariesRcvd = 0;
@@ -267,34 +335,59 @@ public class Registry implements Protocol, Node {
                     System.out.println("Please specify the number of packets to send");
                     break;
                 }
-                commandParser.start(Integer.parseInt(command[1]));
+                // optional rate in packets/sec per node, sends as fast as possible without it
+                commandParser.start(Integer.parseInt(command[1]), command.length > 2 ? Integer.parseInt(command[2]) : 0);
+                break;
+            case ("ramp"):
+                if (command.length < 4) {
+                    System.out.println("Please specify the start rate, step and max rate in packets/sec per node (e.g. ramp 1000 1000 20000)");
+                    break;
+                }
+                // each step runs for 5 s unless specified
+                commandParser.ramp(Integer.parseInt(command[1]), Integer.parseInt(command[2]), Integer.parseInt(command[3]),
+                        command.length > 4 ? Integer.parseInt(command[4]) : 5);
                 break;
             default:
                 System.out.println("Please enter a valid command listed above");
         }
-        System.out.print("Please enter a command for the registry to execute (e.g. list-messaging-nodes, setup-overlay number-of-routing-table-entries, list-routing-tables, start number-of-messages):\n");
+        System.out.print("Please enter a command for the registry to execute (e.g. list-messaging-nodes, setup-overlay number-of-routing-table-entries, list-routing-tables, start number-of-messages [packets-per-second], ramp start-rate step-rate max-rate [step-seconds]):\n");
+    }
+
+    /*  Has the registry listen for connections from msging nodes on portNum (0 picks any free port), over the
+        transport selected by TransportMode. Used by main() and by in-process harnesses  */
+    public static Registry launch(int portNum) throws IOException {
+        Registry registry = new Registry(portNum);
+        registry.portNum = Transport.current().listen(portNum, registry);
+        if (LiveStatsReporter.INTERVAL_MILLIS > 0) {
+            long interval = LiveStatsReporter.INTERVAL_MILLIS;
+            registry.timer.scheduleAtFixedRate(registry::printLiveStats, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return registry;
+    }
+
+    // Prints the overlay's rolling stats, if any node reported since the last time
+    private void printLiveStats() {
+        String liveStats = liveStatsMonitor.summarize(LiveStatsReporter.INTERVAL_MILLIS);
+        if (liveStats != null)
+            System.out.println(liveStats);
     }
 
     public static void main(String[] args) {
-        ServerSocket registryServerSocket = null;
+        Registry registry = null;
         try {
-            registryServerSocket = new ServerSocket(Integer.parseInt(args[0]));
-            System.out.println("Registry is listening on (IP:port): " + registryServerSocket.getInetAddress().getHostAddress() + ':' + args[0] + '\n');
+            registry = launch(Integer.parseInt(args[0]));
+            System.out.println("Registry is listening on port: " + registry.portNum + '\n');
         } catch (IOException e) {
             System.err.println("Unable to create ServerSocket");
         }
 
-        // only proceed if the registryServerSocket is created
-        if (registryServerSocket != null) {
-            Registry registry = new Registry(Integer.parseInt(args[0]), registryServerSocket);
-            // have a thread run the server portion of the registry
-            (new Thread(new TCPServerThread(registry))).start();
-
+        // only proceed if the registry is listening
+        if (registry != null) {
             /* Interactive Command Parser */
             // Allow user to enter commands to control the registry
             InteractiveCommandParser commandParser = new InteractiveCommandParser(registry);
             Scanner sc = new Scanner(System.in);
-            System.out.print("Please enter a command for the registry to execute (e.g. list-messaging-nodes, setup-overlay number-of-routing-table-entries, list-routing-tables, start number-of-messages, CTRL-D to exit):\n");
+            System.out.print("Please enter a command for the registry to execute (e.g. list-messaging-nodes, setup-overlay number-of-routing-table-entries, list-routing-tables, start number-of-messages [packets-per-second], ramp start-rate step-rate max-rate [step-seconds], CTRL-D to exit):\n");
             while (sc.hasNextLine()) {
                 // some commands have arguments that accompany them (e.g. setup-overlay 3)
                 // therefore, [0] will be the command and any successive indices will be the parameters to that command
@@ -0,0 +1,60 @@
+package cs455.overlay.routing;
+
+import java.util.Arrays;
+
+/*  IP and portNum a node is listening on, parsed once when the entry is created instead of splitting
+    an "IP:port" string every time it is used. The IP is kept both as a string and as the bytes sent in msgs.  */
+public class Endpoint {
+    private final String IP;
+    private final byte[] IPbytes;
+    private final int portNum;
+    // IP:port, the key the node's connection is stored under in a ConnectionsCache
+    private final String IPportNumStr;
+
+    public Endpoint(String IP, int portNum) {
+        this.IP = IP;
+        this.IPbytes = IP.getBytes();
+        this.portNum = portNum;
+        this.IPportNumStr = IP + ':' + portNum;
+    }
+
+    // IPbytes as they were read from a msg
+    public Endpoint(byte[] IPbytes, int portNum) {
+        this.IP = new String(IPbytes);
+        this.IPbytes = IPbytes;
+        this.portNum = portNum;
+        this.IPportNumStr = IP + ':' + portNum;
+    }
+
+    public String getIP() {
+        return IP;
+    }
+
+    // Don't modify the returned array, it is shared
+    public byte[] getIPbytes() {
+        return IPbytes;
+    }
+
+    public int getPortNum() {
+        return portNum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Endpoint))
+            return false;
+        Endpoint other = (Endpoint) o;
+        return portNum == other.portNum && Arrays.equals(IPbytes, other.IPbytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(IPbytes) + portNum;
+    }
+
+    public String toString() {
+        return IPportNumStr;
+    }
+}
@@ -0,0 +1,28 @@
+package cs455.overlay.routing;
+
+/*  The IDs the registry gives nodes are in [0, SIZE), SIZE = 2^BITS, -Dcs455.overlay.idBits (default 7, so 0-127;
+    at most 31, IDs are ints in every msg). Only the registry needs the setting, nodes route over whatever IDs are in
+    their manifest.
+    A node's ID is a hash of the IP:port it listens on, so IDs spread evenly around the ring and a node that registers
+    again from the same endpoint gets the same ID. If another node already has that ID the next free one after it is
+    used (linear probing), so registering never draws random IDs until it finds a free one  */
+public class IDSpace {
+    public static final int BITS = Math.max(1, Math.min(31, Integer.getInteger("cs455.overlay.idBits", 7)));
+    public static final int SIZE_MASK = (int) ((1L << BITS) - 1);
+    public static final long SIZE = 1L << BITS;
+
+    // Position of endpoint on the ring, in [0, SIZE)
+    public static int hash(Endpoint endpoint) {
+        // SplitMix64's finalizer, so endpoints that differ in a bit or two (the ports of nodes on one host) land far apart
+        long z = ((long) endpoint.hashCode() << 32) ^ endpoint.getPortNum();
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (int) (z >>> (64 - BITS));
+    }
+
+    // The ID after ID around the ring, where a registration looks next if ID is taken
+    public static int next(int ID) {
+        return (ID + 1) & SIZE_MASK;
+    }
+}
@@ -0,0 +1,64 @@
+package cs455.overlay.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  The nodes registered with the registry, indexed both ways: ID -> Endpoint in ID order (what setup-overlay and the
+    commands go through) and Endpoint -> ID, so finding out whether an endpoint is registered already is a hash lookup
+    instead of a scan of every registered node.
+    Both are concurrent maps, so registrations and deregistrations arriving on different receiver threads don't queue
+    up on a lock: a registration claims its endpoint first, so two requests from the same endpoint can't both get an
+    ID, then claims the first free ID from the endpoint's hash (see IDSpace)  */
+public class Membership {
+    // value of an endpoint that has been claimed but doesn't have its ID yet
+    private static final Integer CLAIMED = -1;
+
+    private final ConcurrentSkipListMap<Integer, Endpoint> nodesByID = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Endpoint, Integer> IDsByEndpoint = new ConcurrentHashMap<>();
+    // IDs taken or promised to a registration in progress. Kept here b/c size() of a skip list counts its entries
+    private final AtomicInteger numNodes = new AtomicInteger();
+
+    // Registers endpoint and returns its ID, -1 if endpoint is registered already or every ID is taken
+    public int register(Endpoint endpoint) {
+        if (IDsByEndpoint.putIfAbsent(endpoint, CLAIMED) != null)
+            return -1;
+
+        // once it has a place under SIZE, there is an ID left for it however the other registrations go
+        if (numNodes.incrementAndGet() > IDSpace.SIZE) {
+            numNodes.decrementAndGet();
+            IDsByEndpoint.remove(endpoint);
+            return -1;
+        }
+
+        int ID = IDSpace.hash(endpoint);
+        while (nodesByID.putIfAbsent(ID, endpoint) != null)
+            ID = IDSpace.next(ID);
+        IDsByEndpoint.put(endpoint, ID);
+        return ID;
+    }
+
+    // Removes the node with ID if it is registered from endpoint, returns whether it was
+    public boolean deregister(int ID, Endpoint endpoint) {
+        if (!nodesByID.remove(ID, endpoint))
+            return false;
+        IDsByEndpoint.remove(endpoint);
+        numNodes.decrementAndGet();
+        return true;
+    }
+
+    // null if ID isn't registered
+    public Endpoint getEndpoint(int ID) {
+        return nodesByID.get(ID);
+    }
+
+    // Counts registrations still being given their ID too
+    public int size() {
+        return numNodes.get();
+    }
+
+    // The registered nodes in ID order, a live view. Register and deregister through this class, not the map
+    public ConcurrentSkipListMap<Integer, Endpoint> getNodes() {
+        return nodesByID;
+    }
+}
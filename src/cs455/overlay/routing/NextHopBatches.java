@@ -0,0 +1,66 @@
+package cs455.overlay.routing;
+
+import cs455.overlay.transport.Connection;
+import cs455.overlay.wireformats.OverlayNodeSendsData;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
+
+/*  A batch being filled for each next hop of a NextHopTable (see OverlayNodeSendsDataBatch). A batch is sent once it
+    holds MAX_PACKETS packets, and the rest on flush(). Each sender thread has its own, and a relay makes one for
+    every batch it receives and flushes it once it has gone through them, so a relayed packet never waits on the
+    packets after it. Only one thread may use it  */
+public class NextHopBatches {
+    private final NextHopTable nextHopTable;
+    // srcs queue with sendEvent(), which waits for credits; relays with relayEvent(), which doesn't wait for long
+    private final boolean relay;
+    // batch being filled for each routing table entry, null until a packet goes to it
+    private final OverlayNodeSendsDataBatch[] batches;
+
+    public NextHopBatches(NextHopTable nextHopTable, boolean relay) {
+        this.nextHopTable = nextHopTable;
+        this.relay = relay;
+        this.batches = new OverlayNodeSendsDataBatch[nextHopTable.getNumNextHops()];
+    }
+
+    // Adds a packet this node sends to the batch for its dst's next hop
+    public void add(int dstID, OverlayNodeSendsData packet) {
+        int index = nextHopTable.getNextHopIndex(dstID);
+        batchFor(index).add(packet);
+        sendIfFull(index);
+    }
+
+    // Adds a packet this node relays to the batch for its dst's next hop, with relayID appended to its routing trace
+    public void addRelayed(int dstID, OverlayNodeSendsData packet, int relayID) {
+        int index = nextHopTable.getNextHopIndex(dstID);
+        batchFor(index).addRelayed(packet, relayID);
+        sendIfFull(index);
+    }
+
+    private OverlayNodeSendsDataBatch batchFor(int index) {
+        if (batches[index] == null)
+            batches[index] = new OverlayNodeSendsDataBatch();
+        return batches[index];
+    }
+
+    private void sendIfFull(int index) {
+        if (batches[index].getNumPackets() >= OverlayNodeSendsDataBatch.MAX_PACKETS)
+            send(index);
+    }
+
+    // The connection owns a batch once it is queued, so the next packet for that hop starts a new one
+    private void send(int index) {
+        Connection connection = nextHopTable.getNextHopAt(index);
+        if (relay)
+            connection.relayEvent(batches[index]);
+        else
+            connection.sendEvent(batches[index]);
+        batches[index] = null;
+    }
+
+    // Sends every batch that has packets in it
+    public void flush() {
+        for (int index = 0; index < batches.length; ++index) {
+            if (batches[index] != null)
+                send(index);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package cs455.overlay.routing;
+
+import cs455.overlay.transport.Connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*  The next hop for every registered dst ID, computed once when the node manifest arrives, so routing a packet
+    (originated or relayed) is an array lookup instead of sorting and scanning the routing table for every packet.
+    The arrays have a slot per dst. While the IDs are small (the default 128 ID space) a dst's slot is its ID.
+    With large IDs (see IDSpace) the slots are the registered IDs in order and a dst's slot is looked up in an open
+    addressing hash table of them, so the arrays grow with the number of nodes instead of the ID space  */
+public class NextHopTable {
+    // largest ID that is still a slot of its own; with 4 arrays that's at most a few hundred KB per node
+    private static final int DIRECT_LOOKUP_LIMIT = 1 << 14;
+
+    // registered IDs in order, the ID of each slot. null when slots are IDs
+    private int[] slotIDs;
+    // hash table of slot + 1 (0 is empty) by ID, a power of two at least twice the number of slots. null when slots are IDs
+    private int[] slotTable;
+    // ID of the routing table entry to forward to for each slot, -1 for IDs that aren't registered (and this node)
+    private int[] nextHopIDs;
+    // connection to that routing table entry for each slot
+    private Connection[] nextHopConnections;
+    // index of that routing table entry for each slot, so a node can keep something per next hop in an arr
+    private int[] nextHopIndices;
+    // connection to each routing table entry, by index
+    private Connection[] entryConnections;
+
+    public NextHopTable(RoutingTable routingTable, ArrayList<Integer> registeredNodeIDs, int selfID) {
+        int[] sortedIDs = new int[registeredNodeIDs.size()];
+        for (int i = 0; i < sortedIDs.length; ++i)
+            sortedIDs[i] = registeredNodeIDs.get(i);
+        Arrays.sort(sortedIDs);
+
+        int numSlots;
+        if (sortedIDs.length > 0 && sortedIDs[sortedIDs.length - 1] >= DIRECT_LOOKUP_LIMIT) {
+            this.slotIDs = sortedIDs;
+            numSlots = sortedIDs.length;
+            this.slotTable = new int[Integer.highestOneBit(Math.max(1, numSlots)) << 2];
+            for (int slot = 0; slot < numSlots; ++slot) {
+                int i = hash(sortedIDs[slot]);
+                while (slotTable[i] != 0)
+                    i = (i + 1) & (slotTable.length - 1);
+                slotTable[i] = slot + 1;
+            }
+        } else {
+            numSlots = sortedIDs.length > 0 ? sortedIDs[sortedIDs.length - 1] + 1 : 0;
+        }
+        this.nextHopIDs = new int[numSlots];
+        this.nextHopConnections = new Connection[numSlots];
+        this.nextHopIndices = new int[numSlots];
+        this.entryConnections = new Connection[routingTable.size()];
+        Arrays.fill(nextHopIDs, -1);
+        Arrays.fill(nextHopIndices, -1);
+
+        // the entries sorted once for every dst instead of once per dst
+        int[] sortedEntryIDs = routingTable.getIDs();
+        Arrays.sort(sortedEntryIDs);
+        for (int dstID : sortedIDs) {
+            if (dstID == selfID)
+                continue;
+            int slot = slotOf(dstID);
+            if (routingTable.contains(dstID))
+                nextHopIDs[slot] = dstID;
+            else
+                nextHopIDs[slot] = findClosestID(sortedEntryIDs, dstID);
+            nextHopIndices[slot] = routingTable.indexOf(nextHopIDs[slot]);
+        }
+    }
+
+    // Slot of dstID in the arrays, -1 if it isn't registered
+    private int slotOf(int dstID) {
+        if (slotTable == null)
+            return dstID >= 0 && dstID < nextHopIDs.length ? dstID : -1;
+        // linear probing, stops at the ID's slot or at an empty entry
+        for (int i = hash(dstID); ; i = (i + 1) & (slotTable.length - 1)) {
+            int slot = slotTable[i] - 1;
+            if (slot == -1 || slotIDs[slot] == dstID)
+                return slot;
+        }
+    }
+
+    // Entry of slotTable to start probing for ID at; IDs from the registry are spread out already, the multiply is for any that aren't
+    private int hash(int ID) {
+        return (ID * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(slotTable.length));
+    }
+
+    // Fill in the connection for each dst from the connections this node opened to its routing table entries
+    public void resolveConnections(RoutingTable routingTable) {
+        for (int slot = 0; slot < nextHopIDs.length; ++slot) {
+            if (nextHopIDs[slot] != -1)
+                nextHopConnections[slot] = routingTable.getConnection(nextHopIndices[slot]);
+        }
+        for (int i = 0; i < entryConnections.length; ++i)
+            entryConnections[i] = routingTable.getConnection(i);
+    }
+
+    // -1 if dstID isn't registered
+    public int getNextHopID(int dstID) {
+        int slot = slotOf(dstID);
+        return slot != -1 ? nextHopIDs[slot] : -1;
+    }
+
+    // null if dstID isn't registered
+    public Connection getNextHop(int dstID) {
+        int slot = slotOf(dstID);
+        return slot != -1 ? nextHopConnections[slot] : null;
+    }
+
+    // Index in the routing table of the next hop to dstID, in [0, getNumNextHops()), -1 if dstID isn't registered
+    public int getNextHopIndex(int dstID) {
+        int slot = slotOf(dstID);
+        return slot != -1 ? nextHopIndices[slot] : -1;
+    }
+
+    public int getNumNextHops() {
+        return entryConnections.length;
+    }
+
+    // Connection to the routing table entry at index
+    public Connection getNextHopAt(int index) {
+        return entryConnections[index];
+    }
+
+    //  Finds the ID of the routing table entry closest to the given dst ID
+    /*  Sort the routing table in ascending order so there is no need to deal
+        w/ ID space wrap-around. Once sorted, we can just look for the largest
+        ID that is less than the destination ID, and that is the closest node.
+        Special case for when no IDs less than destination ID are found. See comments below.  */
+    public static int findClosestID(RoutingTable routingTable, int dstID) {
+        // Get the IDs in the routing table and sort them
+        int[] sortedIDs = routingTable.getIDs();
+        Arrays.sort(sortedIDs);
+        return findClosestID(sortedIDs, dstID);
+    }
+
+    // Same, with the routing table's IDs already sorted
+    public static int findClosestID(int[] sortedIDs, int dstID) {
+        int closestID = -1;
+        int largestID = Integer.MIN_VALUE;
+        for (int id : sortedIDs) {
+            if (id > largestID)
+                largestID = id;
+
+            //  Since the IDs are sorted in ascending order, by the end of this loop,
+            //  we will have the largest node ID that is less than the destination ID.
+            //  This prevents us from overshooting the destination
+            if (id < dstID)
+                closestID = id;
+        }
+
+        /*  closestID can only be -1 if there was no ID in the routing table was
+            less than the dstID. In this case, we have a special wrap-around case
+            where the dst must be between two nodes with greater IDs. Therefore,
+            the closest node will be the largest node ID.
+            Ex.) nodes: [0, 21, 31, 36, 42, 81, 90, 102, 116, 117] | src: 102 | dst: 0
+                 Will not find any ID < 0. This means we have wrapped-around and
+                 the closest node to 0 is the largest ID (i.e. 117)  */
+        if (closestID == -1)
+            closestID = largestID;
+
+        return closestID;
+    }
+
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int slot = 0; slot < nextHopIDs.length; ++slot) {
+            if (nextHopIDs[slot] == -1)
+                continue;
+            stringBuilder.append(slotIDs != null ? slotIDs[slot] : slot);
+            stringBuilder.append(" -> ");
+            stringBuilder.append(nextHopIDs[slot]);
+            stringBuilder.append('\n');
+        }
+        return stringBuilder.toString();
+    }
+}
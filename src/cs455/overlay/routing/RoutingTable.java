@@ -1,54 +1,111 @@
 package cs455.overlay.routing;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import cs455.overlay.transport.Connection;
+
+import java.util.Arrays;
 
 public class RoutingTable {
-    // used LinkedHashMap because I want the routing entries to be stored in the order they are inserted
-    // entries are inserted by hop count; 1st: 1 hop, 2nd: 2 hops, 3rd: 4 hops, nth: 2^(n-1) hops
-    // An entry consists of an integer ID key and IP:portNum string value
-    private LinkedHashMap<Integer, String> routingTable;
+    /*  Entries are stored in parallel arrays in the order they are inserted, which is by hop count;
+        1st: 1 hop, 2nd: 2 hops, 3rd: 4 hops, nth: 2^(n-1) hops.
+        An entry consists of an int ID, the endpoint the node is listening on, whether this node connects to it or
+        waits for it to connect (when both nodes have each other in their tables, they share one connection), and
+        once they are connected, the connection to the node. Tables only have a handful of entries (log of the
+        number of nodes), so looking an ID up is a scan of a small int array, with no boxing or hashing.  */
+    private int[] IDs;
+    private Endpoint[] endpoints;
+    private Connection[] connections;
+    private boolean[] awaitsConnection;
+    private int size = 0;
 
     public RoutingTable() {
-        this.routingTable = new LinkedHashMap<>();
+        this(4);
     }
 
-    public void addRoutingEntry(int ID, String IPportNumStr) {
-        routingTable.put(ID, IPportNumStr);
+    public RoutingTable(int initialCapacity) {
+        initialCapacity = Math.max(initialCapacity, 1);
+        this.IDs = new int[initialCapacity];
+        this.endpoints = new Endpoint[initialCapacity];
+        this.connections = new Connection[initialCapacity];
+        this.awaitsConnection = new boolean[initialCapacity];
     }
 
-    public String getEntry(int ID) {
-        return routingTable.get(ID);
+    public void addRoutingEntry(int ID, Endpoint endpoint) {
+        if (size == IDs.length) {
+            int capacity = IDs.length * 2;
+            IDs = Arrays.copyOf(IDs, capacity);
+            endpoints = Arrays.copyOf(endpoints, capacity);
+            connections = Arrays.copyOf(connections, capacity);
+            awaitsConnection = Arrays.copyOf(awaitsConnection, capacity);
+        }
+        IDs[size] = ID;
+        endpoints[size] = endpoint;
+        ++size;
     }
 
-    public Set<Map.Entry<Integer,String>> getEntrySet() {
-        return routingTable.entrySet();
+    // index of the entry with this ID, or -1 if it isn't in the table
+    public int indexOf(int ID) {
+        for (int i = 0; i < size; ++i) {
+            if (IDs[i] == ID)
+                return i;
+        }
+        return -1;
     }
 
-    public ArrayList<Integer> getKeys() {
-        return new ArrayList<>(routingTable.keySet());
+    public boolean contains(int ID) {
+        return indexOf(ID) != -1;
     }
 
-    public ArrayList<String> getValues() {
-        return new ArrayList<>(routingTable.values());
+    // ID of the node 2^index hops away
+    public int getID(int index) {
+        return IDs[index];
     }
 
-    public boolean contains(int ID) {
-        return routingTable.containsKey(ID);
+    public Endpoint getEndpoint(int index) {
+        return endpoints[index];
+    }
+
+    // Connection to the node 2^index hops away, null until this node has connected to it
+    public Connection getConnection(int index) {
+        return connections[index];
+    }
+
+    public void setConnection(int index, Connection connection) {
+        connections[index] = connection;
+    }
+
+    /*  True if the node at index connects to the owner of this table, which then uses that connection both ways
+        instead of opening one of its own. Set by the registry for one side of each pair with each other in their tables  */
+    public boolean awaitsConnection(int index) {
+        return awaitsConnection[index];
+    }
+
+    public void setAwaitsConnection(int index, boolean awaits) {
+        awaitsConnection[index] = awaits;
+    }
+
+    // Endpoint of the entry with this ID, or null if it isn't in the table
+    public Endpoint getEntry(int ID) {
+        int index = indexOf(ID);
+        return index == -1 ? null : endpoints[index];
+    }
+
+    // Copy of the IDs in insertion order
+    public int[] getIDs() {
+        return Arrays.copyOf(IDs, size);
     }
 
     public int size() {
-        return routingTable.size();
+        return size;
     }
 
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
-        for (Map.Entry<Integer, String> entry : routingTable.entrySet()) {
-            stringBuilder.append(entry.getKey());
+        for (int i = 0; i < size; ++i) {
+            stringBuilder.append(IDs[i]);
             stringBuilder.append(": ");
-            stringBuilder.append(entry.getValue());
+            stringBuilder.append(endpoints[i]);
+            if (awaitsConnection[i])
+                stringBuilder.append(" (connects to this node)");
             stringBuilder.append('\n');
         }
         return stringBuilder.toString();
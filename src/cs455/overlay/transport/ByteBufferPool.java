@@ -0,0 +1,82 @@
+package cs455.overlay.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Reusable buffers the transports encode msgs into and read msgs out of, so opening and closing
+    connections, and msgs too large for a connection's buffers, don't allocate new buffers every time.
+    Buffers are kept in power of two size classes; acquire() returns a cleared buffer at least as large as asked.  */
+public class ByteBufferPool {
+    private static final int MIN_SIZE_CLASS = 12;   // 4 KiB
+    private static final int MAX_SIZE_CLASS = 24;   // 16 MiB, larger buffers are never pooled
+    // max buffers kept per size class, -Dcs455.overlay.bufferPool.maxPooled
+    private static final int MAX_POOLED = Integer.getInteger("cs455.overlay.bufferPool.maxPooled", 256);
+
+    // heap buffers back the blocking transport (streams need the backing array), direct buffers back the NIO transport
+    private static final ByteBufferPool heapPool = new ByteBufferPool(false);
+    private static final ByteBufferPool directPool = new ByteBufferPool(true);
+
+    private boolean direct;
+    private ConcurrentLinkedQueue<ByteBuffer>[] sizeClasses;
+    private AtomicInteger[] pooledCounts;
+
+    @SuppressWarnings("unchecked")
+    private ByteBufferPool(boolean direct) {
+        this.direct = direct;
+        this.sizeClasses = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[MAX_SIZE_CLASS + 1];
+        this.pooledCounts = new AtomicInteger[MAX_SIZE_CLASS + 1];
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; ++i) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public static ByteBufferPool getHeapPool() {
+        return heapPool;
+    }
+
+    public static ByteBufferPool getDirectPool() {
+        return directPool;
+    }
+
+    private static int sizeClass(int capacity) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass > MAX_SIZE_CLASS)
+            return allocate(minCapacity);
+
+        ByteBuffer buffer = sizeClasses[sizeClass].poll();
+        if (buffer == null)
+            return allocate(1 << sizeClass);
+        pooledCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Returns a buffer to the pool. The caller must not use it afterwards
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct)
+            return;
+        int capacity = buffer.capacity();
+        // only exact size class buffers (i.e. ones acquire() allocated) are pooled
+        if (Integer.bitCount(capacity) != 1)
+            return;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS)
+            return;
+        if (pooledCounts[sizeClass].incrementAndGet() > MAX_POOLED) {
+            pooledCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        sizeClasses[sizeClass].add(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
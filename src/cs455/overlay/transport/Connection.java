@@ -0,0 +1,34 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Event;
+
+import java.io.IOException;
+
+/*  A connection between two nodes, whichever Transport made it. The node logic (MessagingNode, Registry and the
+    InteractiveCommandParser) only talks to its peers through this, so it doesn't care if the msgs go over
+    TCP sockets or stay in the process  */
+public interface Connection {
+    // Queues a msg to be sent, waiting for room if the queue is full. It is encoded when it is sent
+    void sendEvent(Event event);
+
+    /*  Queues a msg being relayed for another node. Never waits for room in the queue,
+        so the thread relaying it keeps reading from its own connection  */
+    void relayEvent(Event event);
+
+    // Queues an already marshalled msg
+    void sendMessage(byte[] msg);
+
+    void relayMessage(byte[] msg);
+
+    // msgs queued on this connection that haven't been sent yet
+    int getMsgQueueSize();
+
+    // Starts moving msgs in both directions; msgs that arrive are passed to the node's onEvent()
+    void start() throws IOException;
+
+    // IP of the node on the other end, as this connection sees it
+    String getRemoteIP();
+
+    // IP:port of the other end of this connection (for a node that connected to us, its ephemeral port)
+    String getRemoteAddress();
+}
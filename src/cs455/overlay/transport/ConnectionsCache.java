@@ -1,37 +1,38 @@
 package cs455.overlay.transport;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class TCPConnectionsCache {
+public class ConnectionsCache {
     // the key will be a string that is a concatenation of the IP addr and portNum of a node
     // ex.) IP-addr:portNum -> 127.0.0.1:58390
-    private HashMap<String, TCPConnection> connections;
+    // concurrent, the registry adds and removes the connections of many registering nodes at once
+    private ConcurrentHashMap<String, Connection> connections;
 
-    public TCPConnectionsCache() {
-        connections = new HashMap<>();
+    public ConnectionsCache() {
+        connections = new ConcurrentHashMap<>();
     }
 
-    public void addConnection(String IPportNumKey, TCPConnection connection) {
+    public void addConnection(String IPportNumKey, Connection connection) {
         connections.put(IPportNumKey, connection);
     }
 
-    public TCPConnection removeConnection(String IPportNumKey) {
+    public Connection removeConnection(String IPportNumKey) {
         return connections.remove(IPportNumKey);
     }
 
-    public TCPConnection getConnection(String IPportNumKey) {
+    public Connection getConnection(String IPportNumKey) {
         return connections.get(IPportNumKey);
     }
 
-    public Set<Map.Entry<String, TCPConnection>> getEntrySet() {
+    public Set<Map.Entry<String, Connection>> getEntrySet() {
         return connections.entrySet();
     }
 
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
-        for (Map.Entry<String, TCPConnection> entry : connections.entrySet()) {
+        for (Map.Entry<String, Connection> entry : connections.entrySet()) {
             stringBuilder.append(entry.getKey());
             stringBuilder.append(" -> ");
             stringBuilder.append(entry.getValue());
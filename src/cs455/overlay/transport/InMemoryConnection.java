@@ -0,0 +1,122 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.MarshalledEvent;
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*  One side of a connection made by the InMemoryTransport. Sending encodes the msg into a frame and adds it to the
+    other side's inbound queue; this side's delivery thread takes the frames off its own inbound queue, decodes them
+    and passes them to the node's onEvent(), like a TCPReceiverThread does. The queues are the same lock free
+    MessageRingBuffers the TCPSenderThreads use, with the same rules: sends wait for room, relays never do  */
+public class InMemoryConnection implements Connection, Runnable {
+    private final Node node;
+    private final String remoteIP;
+    private final int remotePortNum;
+    private InMemoryConnection peer;
+
+    // frames the peer sent to this side. Many threads of the peer add to it, only the delivery thread removes
+    private final MessageRingBuffer<byte[]> inbound;
+
+    // flyweight mode, the node is done with a data packet when onEvent() returns
+    private final EventFactory eventFactory = new EventFactory(true);
+
+    // flow control of the data packets on this connection, same as a TCPConnection's
+    private final LinkCredits credits = new LinkCredits();
+
+    private boolean DEBUG = false;
+
+    InMemoryConnection(Node node, String remoteIP, int remotePortNum) {
+        this.node = node;
+        this.remoteIP = remoteIP;
+        this.remotePortNum = remotePortNum;
+        this.inbound = new MessageRingBuffer<>(TCPSenderThread.QUEUE_CAPACITY, TCPSenderThread.SPIN_TRIES);
+    }
+
+    static void pair(InMemoryConnection a, InMemoryConnection b) {
+        a.peer = b;
+        b.peer = a;
+    }
+
+    private static byte[] encode(Event event) {
+        // already marshalled, so the arr itself is the frame
+        if (event instanceof MarshalledEvent)
+            return ((MarshalledEvent) event).getBytes();
+        byte[] frame = new byte[event.encodedSize()];
+        event.encode(ByteBuffer.wrap(frame));
+        return frame;
+    }
+
+    @Override
+    public void sendEvent(Event event) {
+        credits.acquire(event);
+        peer.inbound.put(encode(event));
+    }
+
+    @Override
+    public void relayEvent(Event event) {
+        credits.acquireForRelay(event, LinkCredits.RELAY_WAIT_NANOS);
+        peer.inbound.putOrOverflow(encode(event));
+    }
+
+    // already marshalled, so the arr itself is the frame
+    @Override
+    public void sendMessage(byte[] msg) {
+        sendEvent(new MarshalledEvent(msg));
+    }
+
+    @Override
+    public void relayMessage(byte[] msg) {
+        relayEvent(new MarshalledEvent(msg));
+    }
+
+    @Override
+    public int getMsgQueueSize() {
+        return peer.inbound.size();
+    }
+
+    @Override
+    public void start() {
+        ThreadMode.start(this, "InMemoryConnection " + getRemoteAddress());
+    }
+
+    @Override
+    public String getRemoteIP() {
+        return remoteIP;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteIP + ':' + remotePortNum;
+    }
+
+    public void run() {
+        if (DEBUG)
+            System.out.println("InMemoryConnection delivering to " + node);
+
+        while (true) {
+            try {
+                // parks until the peer sends something
+                byte[] frame = inbound.take();
+                Event event = eventFactory.processMsg(frame);
+                // credit grants are for this connection, not the node
+                if (credits.onReceived(event))
+                    continue;
+                node.onEvent(event, this);
+                credits.onDelivered(event, this);
+            } catch (InterruptedException ie) {
+                break;
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+                break;
+            }
+        }
+    }
+
+    public String toString() {
+        return "InMemoryConnection[remote=" + getRemoteAddress() + "]";
+    }
+}
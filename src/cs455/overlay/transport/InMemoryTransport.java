@@ -0,0 +1,63 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Connections between nodes running in the same process (e.g. the OverlayClusterBenchmark), with no sockets at all.
+    Ports are virtual: listen() claims one in this transport's own port space and connect() looks the listening node
+    up by it, then pairs an InMemoryConnection for each side. Every node is at LOOPBACK_IP, whatever IP it was
+    asked to connect to, so the nodes have to register with that IP.
+    Msgs are still encoded and decoded like on the wire, so profiles show the routing and protocol cost of the
+    overlay without the kernel's networking cost  */
+public class InMemoryTransport implements Transport {
+    public static final String LOOPBACK_IP = "127.0.0.1";
+    // first port handed out for listen(0) and for the connecting side of a connection
+    private static final int FIRST_EPHEMERAL_PORT = 32768;
+
+    private static final InMemoryTransport INSTANCE = new InMemoryTransport();
+
+    // node listening on each port
+    private final ConcurrentHashMap<Integer, Node> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEphemeralPortNum = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+
+    private InMemoryTransport() {
+    }
+
+    public static InMemoryTransport getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public int listen(int portNum, Node node) throws IOException {
+        if (portNum == 0) {
+            do {
+                portNum = nextEphemeralPortNum.getAndIncrement();
+            } while (listeners.putIfAbsent(portNum, node) != null);
+            return portNum;
+        }
+        if (listeners.putIfAbsent(portNum, node) != null)
+            throw new BindException("In memory port " + portNum + " is already in use");
+        return portNum;
+    }
+
+    @Override
+    public Connection connect(String IP, int portNum, Node node) throws IOException {
+        Node listener = listeners.get(portNum);
+        if (listener == null)
+            throw new ConnectException("Nothing is listening on in memory port " + portNum);
+
+        // the connecting side gets an ephemeral port, like a socket would
+        InMemoryConnection connection = new InMemoryConnection(node, LOOPBACK_IP, portNum);
+        InMemoryConnection accepted = new InMemoryConnection(listener, LOOPBACK_IP, nextEphemeralPortNum.getAndIncrement());
+        InMemoryConnection.pair(connection, accepted);
+
+        // same as TCPServerThread does for the connections it accepts
+        accepted.start();
+        return connection;
+    }
+}
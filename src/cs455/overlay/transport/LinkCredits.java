@@ -0,0 +1,181 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.MarshalledEvent;
+import cs455.overlay.wireformats.OverlayNodeGrantsCredits;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
+import cs455.overlay.wireformats.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*  Credit based flow control for the data packets on one connection, both directions.
+    Sending: every data packet takes a credit, and a batch of them one per packet. A connection starts with WINDOW
+    credits and gets more when the other end grants them, so at most WINDOW packets (plus the last batch) are queued
+    or in flight on a link and a fast src can't fill a slow neighbor's queue until the heap runs out. A src waits for a credit. A relay holds up the link it came in on
+    for at most RELAY_WAIT_NANOS and then sends anyway on overdraft: if every node in a cycle of the overlay held its
+    receiver thread until the next one granted credits, none of them would read again. Control msgs never take credits.
+    That holds on every transport: the blocking and in-memory ones wait in the thread delivering the relayed packet,
+    the NIO selector thread can't wait (the grants arrive on it), so it sends the relay on overdraft right away and
+    stops reading the channel the packet came in on until the link has credits again or RELAY_WAIT_NANOS is up.
+    So a link's queue only grows past the window by relays sent on overdraft, at most a msg per incoming link per
+    RELAY_WAIT_NANOS; the queues themselves don't refuse them and are not bounded in memory.
+    Srcs can't take the last RELAY_RESERVE credits. Packets already in the overlay go first, so when a link is
+    congested the srcs feeding it are held back and the relays rarely have to wait: when they shared every credit,
+    the srcs took them all and relays around a cycle of the overlay kept waiting on each other.
+    Receiving: the thread delivering this connection's msgs counts the data packets the node is done with and grants
+    them back in batches of GRANT_BATCH. It also takes the grants the other end sends, they never reach the node.
+    -Dcs455.overlay.link.creditWindow (default 16384, 0 turns flow control off; every node needs the same setting),
+    -Dcs455.overlay.link.relayWaitMicros (default 1000)  */
+public class LinkCredits implements Protocol {
+    public static final int WINDOW = Integer.getInteger("cs455.overlay.link.creditWindow", 16384);
+    static final long RELAY_WAIT_NANOS = Long.getLong("cs455.overlay.link.relayWaitMicros", 1000) * 1000;
+    // a grant per quarter window, so the sender gets credits back well before it runs out
+    private static final int GRANT_BATCH = Math.max(1, WINDOW / 4);
+    private static final int RELAY_RESERVE = WINDOW / 2;
+
+    // relays sent without a credit by every connection in this process
+    private static final AtomicLong totalOverdrafts = new AtomicLong();
+    // times a src had to wait for credits, for every connection in this process
+    private static final AtomicLong totalSrcWaits = new AtomicLong();
+
+    // data packets this end may still send; negative after overdrafts, until grants pay them back
+    private final AtomicInteger credits = new AtomicInteger(WINDOW);
+    // threads waiting in acquire() or acquireForRelay(). Only changed while holding this object's lock
+    private volatile int numWaiting = 0;
+    // data packets delivered since the last grant. Only the delivering thread touches it
+    private int numConsumed = 0;
+
+    public static boolean isEnabled() {
+        return WINDOW > 0;
+    }
+
+    public static long getTotalOverdrafts() {
+        return totalOverdrafts.get();
+    }
+
+    public static long getTotalSrcWaits() {
+        return totalSrcWaits.get();
+    }
+
+    // Credits event takes: 1 for a data packet, the number of packets for a batch, 0 for anything else
+    private static int creditsFor(Event event) {
+        if (WINDOW <= 0)
+            return 0;
+        switch (event.getType()) {
+            case (OVERLAY_NODE_SENDS_DATA):
+                return 1;
+            case (OVERLAY_NODE_SENDS_DATA_BATCH):
+                if (event instanceof OverlayNodeSendsDataBatch)
+                    return ((OverlayNodeSendsDataBatch) event).getNumPackets();
+                // queued already marshalled, the count follows the type
+                if (event instanceof MarshalledEvent)
+                    return ByteBuffer.wrap(((MarshalledEvent) event).getBytes()).getInt(4);
+                return 1;
+        }
+        return 0;
+    }
+
+    /*  Takes numCredits credits if more than reserve are left. A batch may take the count below reserve, so a batch
+        larger than the window doesn't wait forever  */
+    private boolean tryAcquire(int numCredits, int reserve) {
+        int available;
+        do {
+            available = credits.get();
+            if (available <= reserve)
+                return false;
+        } while (!credits.compareAndSet(available, available - numCredits));
+        return true;
+    }
+
+    /*  Before a src queues event: takes a credit per data packet in it, waiting until they are granted if there
+        aren't enough  */
+    public void acquire(Event event) {
+        int numCredits = creditsFor(event);
+        if (numCredits == 0 || tryAcquire(numCredits, RELAY_RESERVE))
+            return;
+
+        totalSrcWaits.incrementAndGet();
+        synchronized (this) {
+            ++numWaiting;
+            try {
+                // numWaiting is published before trying again, so a grant after this either sees it or is seen here
+                while (!tryAcquire(numCredits, RELAY_RESERVE))
+                    wait();
+            } catch (InterruptedException ie) {
+                // send it anyway instead of losing the packets
+                Thread.currentThread().interrupt();
+                credits.addAndGet(-numCredits);
+            } finally {
+                --numWaiting;
+            }
+        }
+    }
+
+    /*  Before a relay queues event: takes a credit per data packet in it, waiting at most waitNanos for them.
+        Once that is up the packets are sent on overdraft. Returns false if they were  */
+    public boolean acquireForRelay(Event event, long waitNanos) {
+        int numCredits = creditsFor(event);
+        if (numCredits == 0 || tryAcquire(numCredits, 0))
+            return true;
+
+        if (waitNanos > 0) {
+            long deadline = System.nanoTime() + waitNanos;
+            synchronized (this) {
+                ++numWaiting;
+                try {
+                    boolean acquired;
+                    while (!(acquired = tryAcquire(numCredits, 0))) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            break;
+                        wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                    if (acquired)
+                        return true;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    --numWaiting;
+                }
+            }
+        }
+        credits.addAndGet(-numCredits);
+        totalOverdrafts.addAndGet(numCredits);
+        return false;
+    }
+
+    // Whether a relay would get a credit now, i.e. the overdrafts have been paid back
+    boolean hasCredits() {
+        return credits.get() > 0;
+    }
+
+    /*  Called by the thread delivering this connection's msgs for every msg it reads, before passing it on to the node.
+        Returns true if it was a credit grant from the other end, which this consumes  */
+    public boolean onReceived(Event event) {
+        if (event.getType() != OVERLAY_NODE_GRANTS_CREDITS)
+            return false;
+        credits.addAndGet(((OverlayNodeGrantsCredits) event).getNumCredits());
+        if (numWaiting > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /*  Called by the thread delivering this connection's msgs once the node is done with a msg. Every GRANT_BATCH
+        data packets, grants them back to the other end on connection. The grant is queued like a relay, so the
+        delivering thread never waits on it  */
+    public void onDelivered(Event event, Connection connection) {
+        int numCredits = creditsFor(event);
+        if (numCredits == 0)
+            return;
+        numConsumed += numCredits;
+        if (numConsumed >= GRANT_BATCH) {
+            connection.relayEvent(new OverlayNodeGrantsCredits(numConsumed));
+            numConsumed = 0;
+        }
+    }
+}
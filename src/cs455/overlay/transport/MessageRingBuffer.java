@@ -0,0 +1,188 @@
+package cs455.overlay.transport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*  Multi-producer/single-consumer queue used as the msg queue of a TCPSenderThread.
+    Each slot has a sequence number that tells producers when the slot is free and the consumer when it is filled,
+    so producers only contend on claiming the next slot and the consumer never takes a lock.
+    Instead of spinning on an empty queue, the consumer spins spinTries times and then parks until a producer
+    unparks it, so an idle connection costs no CPU.
+    offer() and put() are bounded by the capacity. putOrOverflow() is NOT: when the ring is full its msgs go to an
+    unbounded overflow queue, so a caller that must never wait can still grow the queue past capacity.
+    The queue stays FIFO for each producer: while anything is in the overflow queue the ring counts as full, so later
+    msgs queue up behind the overflowed ones (putOrOverflow) or wait for them to be sent (put), and the consumer
+    takes what is in the ring, which is older, before the overflow  */
+public class MessageRingBuffer<E> {
+    // how long a producer waits for the consumer to free a slot before checking again
+    private static final long PRODUCER_PARK_NANOS = 50_000;
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final int spinTries;
+
+    // next position producers claim
+    private final AtomicLong tail = new AtomicLong();
+    // next position the consumer takes; only written by the consumer
+    private volatile long head = 0;
+
+    private volatile Thread consumer;
+    private volatile boolean consumerParked = false;
+
+    /*  Msgs that could not wait for a free slot (see putOrOverflow), newer than every msg in the ring.
+        Only used when the ring is full, so in the common case nothing is ever added to it  */
+    private final ConcurrentLinkedQueue<E> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger overflowSize = new AtomicInteger();
+
+    /*  capacity: rounded up to a power of two so positions map to slots with a mask
+        spinTries: times the consumer (and a producer waiting on a full ring) spins before parking. 0 parks right away  */
+    public MessageRingBuffer(int capacity, int spinTries) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i)
+            sequences.set(i, i);
+        this.mask = size - 1;
+        this.spinTries = spinTries;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head) + overflowSize.get();
+    }
+
+    /*  Adds msg if there is a free slot. Returns false without waiting if the ring is full, or if msgs are waiting in
+        the overflow queue, which msg must not overtake  */
+    public boolean offer(E msg) {
+        if (overflowSize.get() > 0)
+            return false;
+        long pos = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                // slot still holds a msg from the previous lap; ring is full
+                return false;
+            } else {
+                // another producer claimed this position
+                pos = tail.get();
+            }
+        }
+        buffer[slot] = msg;
+        // publish the msg. Volatile write so the read of consumerParked below can't be reordered before it
+        sequences.set(slot, pos + 1);
+        signalConsumer();
+        return true;
+    }
+
+    // Adds msg, waiting for the consumer to free a slot if the ring is full (or to empty the overflow queue)
+    public void put(E msg) {
+        int spins = 0;
+        while (!offer(msg)) {
+            if (spins < spinTries) {
+                ++spins;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+            }
+        }
+    }
+
+    /*  Adds msg without ever waiting. If the ring is full, msg goes to the unbounded overflow queue instead,
+        behind any msgs already there.
+        Used for msgs that must not block the calling thread, e.g. relays from a receiver thread: if every node
+        in a cycle of the overlay blocked its receiver thread on a full queue, none of them would read again.  */
+    public void putOrOverflow(E msg) {
+        if (offer(msg))
+            return;
+        // counted before it is added so no offer() that starts after this one puts a msg in the ring ahead of it
+        overflowSize.incrementAndGet();
+        overflow.add(msg);
+        signalConsumer();
+    }
+
+    // Removes the next msg, or returns null if there is none. Only the consumer thread may call this
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int slot = (int) (pos & mask);
+        if (sequences.get(slot) != pos + 1) {
+            // ring is empty, check for msgs that overflowed
+            if (overflow.peek() == null)
+                return null;
+            /*  the ring may have been filled since it was checked, and then the overflowed msg added behind it.
+                Whatever is in the ring now got there before that msg was counted, so it goes first  */
+            if (sequences.get(slot) != pos + 1) {
+                E msg = overflow.poll();
+                overflowSize.decrementAndGet();
+                return msg;
+            }
+        }
+        E msg = (E) buffer[slot];
+        buffer[slot] = null;
+        // free the slot for the producer that claims it on the next lap
+        sequences.lazySet(slot, pos + mask + 1);
+        head = pos + 1;
+        return msg;
+    }
+
+    // Removes the next msg, spinning and then parking until one is available. Only the consumer thread may call this
+    public E take() throws InterruptedException {
+        return poll(-1);
+    }
+
+    /*  Removes the next msg, spinning and then parking for at most timeoutNanos until one is available.
+        Returns null if none arrived in time. A negative timeout waits until a msg arrives.
+        Only the consumer thread may call this  */
+    public E poll(long timeoutNanos) throws InterruptedException {
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        int spins = 0;
+        E msg;
+        while ((msg = poll()) == null) {
+            if (spins < spinTries) {
+                ++spins;
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (timeoutNanos >= 0 && remaining <= 0)
+                return null;
+
+            consumerParked = true;
+            // check again after publishing consumerParked so a msg added in between can't be missed
+            msg = poll();
+            if (msg != null) {
+                consumerParked = false;
+                return msg;
+            }
+            if (timeoutNanos < 0)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, remaining);
+            consumerParked = false;
+
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return msg;
+    }
+
+    private void signalConsumer() {
+        if (consumerParked)
+            LockSupport.unpark(consumer);
+    }
+}
@@ -0,0 +1,224 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  NIO counterpart of the TCPSenderThread/TCPReceiverThread pair. Holds the buffers of one non-blocking channel.
+    read() and write() are only called by the node's TCPSelectorThread when the channel is ready, so neither
+    of them ever blocks. Uses the same framing as the blocking transport: an int msg length followed by the msg.  */
+public class TCPChannelHandler {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TCPConnection connection;
+    private LinkCredits credits;
+    private SocketChannel channel;
+    private Node node;
+    private volatile TCPSelectorThread selectorThread;
+    private SelectionKey key;
+
+    // Partially received msgs stay in the read buffer until the rest of their bytes arrive
+    private ByteBuffer readBuffer;
+    // Queued msgs are framed into the write buffer and written as many at a time as the socket accepts
+    private ByteBuffer writeBuffer;
+    private EventFactory eventFactory;
+
+    // Any thread can queue msgs, only the selector thread removes them and encodes them into the write buffer
+    private ConcurrentLinkedQueue<Event> msgQueue;
+    // ConcurrentLinkedQueue.size() walks the whole queue, so keep count separately
+    private AtomicInteger msgQueueSize;
+    // true while OP_WRITE is set (or about to be set) for this channel
+    private AtomicBoolean writeScheduled;
+
+    /*  Set while reading is paused b/c a msg from this channel was relayed onto a link without credits: the link
+        being waited on and when to read again regardless. Only the selector thread touches them  */
+    private LinkCredits awaitedCredits;
+    private long readPausedUntil;
+
+    public TCPChannelHandler(TCPConnection connection, SocketChannel channel, Node node) {
+        this.connection = connection;
+        this.credits = connection.getCredits();
+        this.channel = channel;
+        this.node = node;
+        this.readBuffer = ByteBufferPool.getDirectPool().acquire(BUFFER_SIZE);
+        this.writeBuffer = ByteBufferPool.getDirectPool().acquire(BUFFER_SIZE);
+        this.eventFactory = new EventFactory(true);
+        this.msgQueue = new ConcurrentLinkedQueue<>();
+        this.msgQueueSize = new AtomicInteger();
+        this.writeScheduled = new AtomicBoolean();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    LinkCredits getCredits() {
+        return credits;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public int getMsgQueueSize() {
+        return msgQueueSize.get();
+    }
+
+    boolean hasPendingWrites() {
+        return writeScheduled.get();
+    }
+
+    // Registers the channel with the node's selector thread so it starts reading and writing
+    public void register() throws IOException {
+        selectorThread = TCPSelectorThread.getInstance(node);
+        selectorThread.register(this);
+    }
+
+    public void addEvent(Event event) {
+        msgQueue.add(event);
+        msgQueueSize.incrementAndGet();
+
+        // only the first msg queued since the last time the queue drained has to ask for OP_WRITE
+        if (writeScheduled.compareAndSet(false, true) && selectorThread != null) {
+            selectorThread.executeOnSelectorThread(() -> {
+                // not registered yet; register() will set OP_WRITE since writeScheduled is true
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+    }
+
+    void read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            // other end closed the connection
+            close();
+            return;
+        }
+        deliver();
+    }
+
+    // Hands the complete msgs in the read buffer to the node, until the buffer runs out or reading is paused
+    private void deliver() throws IOException {
+        readBuffer.flip();
+        // only hand complete msgs to the node; num bytes in msg is the first 4 bytes (int) of each msg
+        int bytesNeeded = 0;
+        while (readBuffer.remaining() >= 4 && awaitedCredits == null) {
+            int msgLength = readBuffer.getInt(readBuffer.position());
+            if (readBuffer.remaining() < 4 + msgLength) {
+                bytesNeeded = 4 + msgLength;
+                break;
+            }
+            // the msg is decoded in place; the node has to be done with it before the buffer is compacted
+            Event event = eventFactory.processMsg(readBuffer, readBuffer.position() + 4, msgLength);
+            // credit grants are for this connection, not the node
+            if (!credits.onReceived(event)) {
+                selectorThread.setDelivering(this);
+                node.onEvent(event, connection);
+                selectorThread.setDelivering(null);
+                credits.onDelivered(event, connection);
+            }
+            readBuffer.position(readBuffer.position() + 4 + msgLength);
+        }
+        readBuffer.compact();
+
+        // msg is bigger than the buffer; grow it so the whole msg fits
+        if (bytesNeeded > readBuffer.capacity()) {
+            ByteBuffer largerBuffer = ByteBufferPool.getDirectPool().acquire(bytesNeeded);
+            readBuffer.flip();
+            largerBuffer.put(readBuffer);
+            ByteBufferPool.getDirectPool().release(readBuffer);
+            readBuffer = largerBuffer;
+        }
+    }
+
+    /*  Called when a relay is sent on overdraft on this channel's connection. If the selector thread is delivering
+        the msg that was relayed, it stops reading the channel that msg came from (see LinkCredits)  */
+    void onRelayOverdraft() {
+        if (selectorThread != null)
+            selectorThread.pauseDelivering(credits);
+    }
+
+    // Stops reading this channel until linkCredits has credits again, or until deadline (System.nanoTime())
+    void pauseReading(LinkCredits linkCredits, long deadline) {
+        if (awaitedCredits == null && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        awaitedCredits = linkCredits;
+        readPausedUntil = deadline;
+    }
+
+    long getReadPausedUntil() {
+        return readPausedUntil;
+    }
+
+    /*  Reads again if the link being waited on has credits or the wait is up, delivering the msgs that were left
+        in the read buffer first. Returns false if reading is still paused  */
+    boolean tryResumeReading(long now) throws IOException {
+        if (!key.isValid()) {
+            awaitedCredits = null;
+            return true;
+        }
+        if (!awaitedCredits.hasCredits() && now - readPausedUntil < 0)
+            return false;
+        awaitedCredits = null;
+        deliver();
+        if (awaitedCredits != null)
+            return false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        return true;
+    }
+
+    void write() throws IOException {
+        // encode as many queued msgs as fit straight into the write buffer
+        Event event;
+        while ((event = msgQueue.peek()) != null) {
+            int msgLength = event.encodedSize();
+            if (writeBuffer.remaining() < 4 + msgLength) {
+                if (writeBuffer.position() > 0)
+                    break;
+                // a single msg larger than the buffer
+                ByteBufferPool.getDirectPool().release(writeBuffer);
+                writeBuffer = ByteBufferPool.getDirectPool().acquire(4 + msgLength);
+            }
+            writeBuffer.putInt(msgLength);
+            event.encode(writeBuffer);
+            msgQueue.poll();
+            msgQueueSize.decrementAndGet();
+        }
+
+        writeBuffer.flip();
+        channel.write(writeBuffer);
+        writeBuffer.compact();
+
+        // socket could not take everything or more msgs are waiting, keep OP_WRITE for the next select
+        if (writeBuffer.position() > 0 || !msgQueue.isEmpty())
+            return;
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeScheduled.set(false);
+        // a msg could have been queued after the queue was seen empty but before writeScheduled was cleared
+        if (!msgQueue.isEmpty() && writeScheduled.compareAndSet(false, true))
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void close() {
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        }
+        ByteBufferPool.getDirectPool().release(readBuffer);
+        ByteBufferPool.getDirectPool().release(writeBuffer);
+        readBuffer = null;
+        writeBuffer = null;
+    }
+}
@@ -1,14 +1,23 @@
 package cs455.overlay.transport;
 
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.MarshalledEvent;
 import cs455.overlay.wireformats.Node;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
-public class TCPConnection {
+// A Connection over a TCP socket, using the blocking or NIO transport
+public class TCPConnection implements Connection {
     private Socket socket;
     private TCPSenderThread senderThread;
     private TCPReceiverThread receiverThread;
+    // only set when using the NIO transport; takes the place of the sender and receiver threads
+    private TCPChannelHandler channelHandler;
+    // flow control of the data packets on this connection
+    private final LinkCredits credits = new LinkCredits();
 
     /*  socket: used to retrieve the communications to a node
         node: allows TCPReceiver thread to call the node's onEvent()  */
@@ -18,19 +27,106 @@ public class TCPConnection {
         this.receiverThread = new TCPReceiverThread(this, node);
     }
 
+    /*  channel: non-blocking channel to a node, serviced by the node's TCPSelectorThread
+        node: allows the selector thread to call the node's onEvent()  */
+    public TCPConnection(SocketChannel channel, Node node) {
+        this.socket = channel.socket();
+        this.channelHandler = new TCPChannelHandler(this, channel, node);
+    }
+
+    // Opens a connection to IP:portNum using the transport selected by TransportMode
+    public static TCPConnection connect(String IP, int portNum, Node node) throws IOException {
+        if (TransportMode.current() == TransportMode.NIO) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(IP, portNum));
+            return new TCPConnection(channel, node);
+        }
+        return new TCPConnection(new Socket(IP, portNum), node);
+    }
+
     public Socket getSocket() {
         return socket;
     }
 
     /*  Allows the nodes to access the sender thread for this connection
-        so msgs can be added to the sender thread's queue  */
+        so msgs can be added to the sender thread's queue.
+        null when using the NIO transport, use sendMessage() instead  */
     public TCPSenderThread getSenderThread() {
         return senderThread;
     }
 
-    public void startSenderAndReceiverThreads() {
-        (new Thread(senderThread)).start();
-        (new Thread(receiverThread)).start();
+    LinkCredits getCredits() {
+        return credits;
+    }
+
+    /*  Queues a msg to be sent on this connection, whichever transport it uses. It is encoded when it is sent.
+        A data packet waits for a credit first  */
+    @Override
+    public void sendEvent(Event event) {
+        credits.acquire(event);
+        if (channelHandler != null)
+            channelHandler.addEvent(event);
+        else
+            senderThread.addEvent(event);
+    }
+
+    /*  Queues a msg being relayed for another node. Never waits for room in the sender's queue,
+        so the receiver thread relaying it keeps reading from its own connection.
+        A data packet waits a bounded time for a credit first, except on the NIO selector thread: the grants it would
+        wait for can only arrive on that same thread, so it stops reading the channel the packet came in on instead  */
+    @Override
+    public void relayEvent(Event event) {
+        if (channelHandler != null) {
+            if (!credits.acquireForRelay(event, 0))
+                channelHandler.onRelayOverdraft();
+            channelHandler.addEvent(event);
+        } else {
+            credits.acquireForRelay(event, LinkCredits.RELAY_WAIT_NANOS);
+            senderThread.relayEvent(event);
+        }
+    }
+
+    // Queues an already marshalled msg
+    @Override
+    public void sendMessage(byte[] msg) {
+        sendEvent(new MarshalledEvent(msg));
+    }
+
+    @Override
+    public void relayMessage(byte[] msg) {
+        relayEvent(new MarshalledEvent(msg));
+    }
+
+    @Override
+    public int getMsgQueueSize() {
+        if (channelHandler != null)
+            return channelHandler.getMsgQueueSize();
+        return senderThread.getMsgQueueSize();
+    }
+
+    /*  Blocking transport: starts this connection's sender and receiver threads, platform or virtual per ThreadMode.
+        NIO transport: registers the channel with the node's selector thread instead of starting threads  */
+    public void startSenderAndReceiverThreads() throws IOException {
+        if (channelHandler != null) {
+            channelHandler.register();
+            return;
+        }
+        ThreadMode.start(senderThread, "TCPSenderThread " + socket.getRemoteSocketAddress());
+        ThreadMode.start(receiverThread, "TCPReceiverThread " + socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void start() throws IOException {
+        startSenderAndReceiverThreads();
+    }
+
+    @Override
+    public String getRemoteIP() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return getRemoteIP() + ':' + socket.getPort();
     }
 
     public String toString() {
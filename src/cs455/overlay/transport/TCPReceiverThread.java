@@ -4,24 +4,42 @@ import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.EventFactory;
 import cs455.overlay.wireformats.Node;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 public class TCPReceiverThread implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private TCPConnection connection;
+    private LinkCredits credits;
     private Socket socket;
     private DataInputStream dIn;
     private Node node;
 
+    /*  Create one Event Factory per connection to handle the processing of msgs (processMsg).
+        It runs in flyweight mode, so data packets are read straight out of msgBuffer instead of being copied  */
+    private EventFactory eventFactory;
+
+    // every msg is read into this arr, which only grows when a msg doesn't fit
+    private byte[] msg;
+    private ByteBuffer msgBuffer;
+
     private boolean DEBUG = false;
 
     public TCPReceiverThread(TCPConnection connection, Node node) throws IOException {
         this.connection = connection;
+        this.credits = connection.getCredits();
         this.socket = connection.getSocket();
-        this.dIn = new DataInputStream(connection.getSocket().getInputStream());
+        // buffered so reading the msg length and the msg doesn't take a read() call on the socket per byte
+        this.dIn = new DataInputStream(new BufferedInputStream(connection.getSocket().getInputStream(), BUFFER_SIZE));
         this.node = node;
+        this.eventFactory = new EventFactory(true);
+        this.msg = new byte[1024];
+        this.msgBuffer = ByteBuffer.wrap(msg);
     }
 
     public void run() {
@@ -37,20 +55,26 @@ public class TCPReceiverThread implements Runnable {
                 // num bytes in msg is the first 4 bytes (int) in msg
                 msgLength = dIn.readInt();
 
-                // create byte[] to hold the reading of msg
-                byte[] msg = new byte[msgLength];
+                // grow the byte[] that holds the reading of msg if this msg doesn't fit
+                if (msgLength > msg.length) {
+                    msg = new byte[Math.max(msgLength, 2 * msg.length)];
+                    msgBuffer = ByteBuffer.wrap(msg);
+                }
 
-                // read whole msg into the created byte[]
+                // read whole msg into the byte[]
                 dIn.readFully(msg, 0, msgLength);
 
-                // Create Event Factory to handle the processing of msgs (processMsg)
                 /*  processMsg will unmarshall the msg based on the msg type and return an appropriate Event obj.
                     Pass in the connection being used to communicate with the msging node b/c we don't want to
                     create a connection-per-message. The node is passed in so the methods, in onEvent(), can
-                    modify the appropriate fields in the node.  */
-                EventFactory eventFactory = new EventFactory();
-                Event event = eventFactory.processMsg(msg);
+                    modify the appropriate fields in the node.
+                    The node has to be done with the event when onEvent() returns, the next msg overwrites it  */
+                Event event = eventFactory.processMsg(msgBuffer, 0, msgLength);
+                // credit grants are for this connection, not the node
+                if (credits.onReceived(event))
+                    continue;
                 node.onEvent(event, connection);
+                credits.onDelivered(event, connection);
             } catch(SocketException se) {
                 System.out.println(se.getMessage());
                 break;
@@ -62,4 +86,4 @@ public class TCPReceiverThread implements Runnable {
         if (DEBUG)
             System.out.println("------------------------------\nEXITING TCPReceiverThread!!!!!\n------------------------------");
     }
-}
\ No newline at end of file
+}
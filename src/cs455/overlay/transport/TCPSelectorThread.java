@@ -0,0 +1,212 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*  Used by the NIO transport. A single thread per node (registry or msging node) multiplexes the server channel and
+    every connection of that node, so a node costs one thread no matter how many connections it has, instead of a
+    sender and receiver thread per connection.
+    Events are dispatched to the node's onEvent() on this thread, in the order they were read from each channel.
+    A channel whose msgs are relayed onto a link without flow control credits is not read for a while, in place
+    of the wait the receiver thread of the blocking transport does (see LinkCredits)  */
+public class TCPSelectorThread implements Runnable {
+    // one selector thread per node, created the first time the node needs it
+    private static final Map<Node, TCPSelectorThread> selectorThreads = new IdentityHashMap<>();
+
+    private Selector selector;
+    private Node node;
+    private Thread thread;
+
+    /*  Registering a channel or changing its interest ops from another thread while this thread is blocked in
+        select() can block that thread until the select returns. Other threads queue their changes here and
+        wake the selector so the changes are applied by this thread before it selects again.  */
+    private ConcurrentLinkedQueue<Runnable> pendingChanges;
+
+    // handler whose msg is being passed to the node's onEvent(), null between msgs
+    private TCPChannelHandler delivering;
+    // handlers that stopped reading until a link they relay onto gets credits back
+    private ArrayList<TCPChannelHandler> pausedHandlers;
+
+    private boolean DEBUG = false;
+
+    private TCPSelectorThread(Node node) throws IOException {
+        this.selector = Selector.open();
+        this.node = node;
+        this.pendingChanges = new ConcurrentLinkedQueue<>();
+        this.pausedHandlers = new ArrayList<>();
+    }
+
+    // Retrieve the selector thread of the node, starting it if this is the first channel the node uses
+    public static synchronized TCPSelectorThread getInstance(Node node) throws IOException {
+        TCPSelectorThread selectorThread = selectorThreads.get(node);
+        if (selectorThread == null) {
+            selectorThread = new TCPSelectorThread(node);
+            selectorThread.thread = new Thread(selectorThread);
+            selectorThread.thread.start();
+            selectorThreads.put(node, selectorThread);
+        }
+        return selectorThread;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    // Runs the change now if called from the selector thread, otherwise queues it and wakes the selector up
+    void executeOnSelectorThread(Runnable change) {
+        if (Thread.currentThread() == thread) {
+            change.run();
+        } else {
+            pendingChanges.add(change);
+            selector.wakeup();
+        }
+    }
+
+    void setDelivering(TCPChannelHandler handler) {
+        delivering = handler;
+    }
+
+    /*  A relay was sent on overdraft on the link with linkCredits. If it came from a msg this thread is delivering,
+        stop reading the channel that msg came in on, unless that is the link itself: its grants arrive on it  */
+    void pauseDelivering(LinkCredits linkCredits) {
+        if (Thread.currentThread() != thread || delivering == null || delivering.getCredits() == linkCredits)
+            return;
+        if (!pausedHandlers.contains(delivering))
+            pausedHandlers.add(delivering);
+        delivering.pauseReading(linkCredits, System.nanoTime() + LinkCredits.RELAY_WAIT_NANOS);
+    }
+
+    // Resumes the paused handlers that can read again. Returns millis until the earliest wait is up, 0 if none are
+    private long resumePausedHandlers() {
+        if (pausedHandlers.isEmpty())
+            return 0;
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        // delivering the msgs a handler held back can pause it (or, for another link, a handler already resumed) again
+        for (int i = 0; i < pausedHandlers.size(); ) {
+            TCPChannelHandler handler = pausedHandlers.get(i);
+            boolean resumed;
+            try {
+                resumed = handler.tryResumeReading(now);
+            } catch (IOException ioe) {
+                // same as a failed read
+                System.out.println(ioe.getMessage());
+                handler.close();
+                resumed = true;
+            }
+            if (resumed) {
+                pausedHandlers.remove(i);
+            } else {
+                earliest = Math.min(earliest, handler.getReadPausedUntil() - now);
+                ++i;
+            }
+        }
+        if (pausedHandlers.isEmpty())
+            return 0;
+        // select(0) would wait forever
+        return Math.max(1, (Math.max(earliest, 0) + 999999) / 1000000);
+    }
+
+    // Start accepting connections on the node's server channel
+    public void registerServer(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        executeOnSelectorThread(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException cce) {
+                System.err.println("Unable to accept connections on a closed server channel");
+            }
+        });
+    }
+
+    // Start reading from the handler's channel. Also start writing if msgs were queued before it was registered
+    void register(TCPChannelHandler handler) throws IOException {
+        SocketChannel channel = handler.getChannel();
+        channel.configureBlocking(false);
+        executeOnSelectorThread(() -> {
+            try {
+                int interestOps = SelectionKey.OP_READ;
+                if (handler.hasPendingWrites())
+                    interestOps |= SelectionKey.OP_WRITE;
+                handler.setKey(channel.register(selector, interestOps, handler));
+            } catch (ClosedChannelException cce) {
+                System.out.println("Unable to register closed channel: " + channel);
+            }
+        });
+    }
+
+    private void accept(SelectionKey key) {
+        try {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel == null)
+                return;
+            /*  Same as the blocking TCPServerThread: wrap the channel in a TCPConnection so the node can communicate
+                through it. The channel gets registered with this selector instead of starting threads  */
+            TCPConnection connection = new TCPConnection(channel, node);
+            connection.startSenderAndReceiverThreads();
+        } catch (IOException ioe) {
+            System.err.println("Unable to accept connection");
+            ioe.printStackTrace();
+        }
+    }
+
+    public void run() {
+        if (DEBUG)
+            System.out.println("Starting TCPSelectorThread...");
+
+        while (selector.isOpen()) {
+            try {
+                // apply registrations and interest op changes requested by other threads
+                Runnable change;
+                while ((change = pendingChanges.poll()) != null)
+                    change.run();
+
+                long pauseMillis = resumePausedHandlers();
+                if (pauseMillis > 0)
+                    selector.select(pauseMillis);
+                else
+                    selector.select();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+
+                    TCPChannelHandler handler = (TCPChannelHandler) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            handler.read();
+                        if (key.isValid() && key.isWritable())
+                            handler.write();
+                    } catch (IOException ioe) {
+                        // same as the receiver thread: report and stop using this connection
+                        System.out.println(ioe.getMessage());
+                        handler.close();
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println("TCPSelectorThread: select failed");
+                ioe.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,98 +1,134 @@
 package cs455.overlay.transport;
 
-import java.io.DataOutputStream;
+import cs455.overlay.wireformats.Event;
+import cs455.overlay.wireformats.MarshalledEvent;
+
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
 
 public class TCPSenderThread implements Runnable {
+    // max msgs queued per connection, -Dcs455.overlay.sender.queueCapacity
+    public static final int QUEUE_CAPACITY = Integer.getInteger("cs455.overlay.sender.queueCapacity", 65536);
+    // times the sender spins on an empty queue before parking, -Dcs455.overlay.sender.spinTries (0 parks right away)
+    public static final int SPIN_TRIES = Integer.getInteger("cs455.overlay.sender.spinTries", 100);
+    // max bytes of framed msgs written to the socket at once, -Dcs455.overlay.sender.maxBatchBytes
+    public static final int MAX_BATCH_BYTES = Integer.getInteger("cs455.overlay.sender.maxBatchBytes", 64 * 1024);
+    /*  max time the first msg of a batch waits for more msgs to fill the batch, -Dcs455.overlay.sender.maxBatchDelayMicros.
+        0 writes as soon as the queue is empty, so a batch only ever holds msgs that were already waiting  */
+    public static final long MAX_BATCH_DELAY_NANOS = Long.getLong("cs455.overlay.sender.maxBatchDelayMicros", 0) * 1000;
+
     private Socket socket;
-    private DataOutputStream dOut;
+    private OutputStream out;
+
+    /*  Many threads add msgs to this queue: the main thread of a msging node sends msgs while
+        multiple rcvr threads of the msging node can be relaying msgs since a msging node can rcv
+        msgs from each of its connections. Only this thread removes msgs from it.
+        The sender thread parks while the queue is empty and is unparked when a msg is added.  */
+    private MessageRingBuffer<Event> msgQueue;
 
-    /*  Access to this must be synchronized b/c while only the main thread
-        of a msging node can send msgs, multiple rcvr threads of a msging node
-        can be relaying msgs since a msging node can rcv msgs from each of its
-        connections. Therefore, we can only allow one rcvr thead at a time to
-        add msgs to the msgQueue.  */
-    //private ArrayList<byte[]> msgQueue;
-    private ConcurrentLinkedQueue<byte[]> msgQueue;
+    /*  Queued msgs are encoded (length + msg) straight into this buffer and the whole batch goes to the socket
+        in one write, instead of a write and flush per msg  */
+    private ByteBuffer batch;
 
     private boolean DEBUG = false;
 
     public TCPSenderThread(Socket socket) throws IOException {
         this.socket = socket;
-        this.dOut = new DataOutputStream(socket.getOutputStream());
-        this.msgQueue = new ConcurrentLinkedQueue<>();
+        this.out = socket.getOutputStream();
+        this.msgQueue = new MessageRingBuffer<>(QUEUE_CAPACITY, SPIN_TRIES);
+        this.batch = ByteBufferPool.getHeapPool().acquire(MAX_BATCH_BYTES);
+        this.batch.limit(MAX_BATCH_BYTES);
     }
 
     public int getMsgQueueSize() {
         return msgQueue.size();
     }
 
-    /*public synchronized void addMessage(byte[] msg) {
-        msgQueue.add(msg);
-        // let any thread know to check the msgQueue again
-        notifyAll();
-    }*/
+    // Queues a msg, waiting for room if the queue is full. The msg is encoded by this thread when it is sent
+    public void addEvent(Event event) {
+        msgQueue.put(event);
+    }
 
-    public void addMessage(byte[] msg) {
-        msgQueue.add(msg);
+    /*  Queues a msg without ever waiting for room. Receiver threads relay through this so a full queue
+        can never stop them from reading, which could deadlock a cycle of nodes relaying to each other  */
+    public void relayEvent(Event event) {
+        msgQueue.putOrOverflow(event);
     }
 
-    private void sendData(byte[] msg) throws IOException {
-        // num bytes in the msg byte arr
-        int dataLength = msg.length;
-        // write the length of the msg to the buffer
-        dOut.writeInt(dataLength);
+    // Queues an already marshalled msg
+    public void addMessage(byte[] msg) {
+        addEvent(new MarshalledEvent(msg));
+    }
 
-        // write dataLength (all) bytes from msg byte arr,
-        // starting at first (0th) byte, to the dOut buffer
-        dOut.write(msg, 0, dataLength);
+    public void relayMessage(byte[] msg) {
+        relayEvent(new MarshalledEvent(msg));
+    }
 
-        // write whats in the buffer to the underlying stream
-        dOut.flush();
+    // Encode the msg length and then the msg into the batch
+    private void addToBatch(Event event) throws IOException {
+        // num bytes in the encoded msg
+        int dataLength = event.encodedSize();
+        if (batch.remaining() < 4 + dataLength) {
+            sendBatch();
+            if (batch.remaining() < 4 + dataLength) {
+                // msg can't fit in the batch at all, encode it into a buffer of its own
+                ByteBuffer largeMsg = ByteBufferPool.getHeapPool().acquire(4 + dataLength);
+                largeMsg.putInt(dataLength);
+                event.encode(largeMsg);
+                out.write(largeMsg.array(), 0, largeMsg.position());
+                ByteBufferPool.getHeapPool().release(largeMsg);
+                return;
+            }
+        }
+        batch.putInt(dataLength);
+        event.encode(batch);
+    }
 
-        // remove the msg from the queue now that it has been sent
-        msgQueue.remove(msg);
+    // write whats in the batch to the socket
+    private void sendBatch() throws IOException {
+        if (batch.position() == 0)
+            return;
+        out.write(batch.array(), 0, batch.position());
+        out.flush();
+        batch.clear();
+        batch.limit(MAX_BATCH_BYTES);
     }
 
-    // TODO: MIGHT NEED TO SNYC RUN OR ADDMSG
     public void run() {
         if (DEBUG)
             System.out.println("Starting TCPSenderThread...");
 
-        /*try {
-            while(true) {
-                if (msgQueue.isEmpty()) {
-                    try {
-                        // if nothing to send, wait until we are notified to check the condition again
-                        wait();
-                    } catch (InterruptedException ie) {
-                        // do nothing if interrupted
-                    }
-                } else {
-                    sendData(msgQueue.get(0));
-                    notifyAll();
-
-                    if (DEBUG)
-                        System.out.println("Sending msg");
-                }
-            }
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }*/
-
         while (socket != null) {    // while the socket is still connected
-            byte[] msgToSend = msgQueue.poll();
             try {
-                if (msgToSend != null) {
-                    sendData(msgToSend);
+                // parks until there is a msg to send
+                addToBatch(msgQueue.take());
+
+                // keep adding msgs until the batch is full, the queue is empty, or the first msg has waited long enough
+                long deadline = System.nanoTime() + MAX_BATCH_DELAY_NANOS;
+                while (batch.hasRemaining()) {
+                    Event msgToSend = msgQueue.poll();
+                    if (msgToSend == null && MAX_BATCH_DELAY_NANOS > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining > 0)
+                            msgToSend = msgQueue.poll(remaining);
+                    }
+                    if (msgToSend == null)
+                        break;
+                    addToBatch(msgToSend);
                 }
+
+                sendBatch();
+            } catch (InterruptedException ie) {
+                break;
             } catch (IOException ioe) {
                 System.out.println("TCPSenderThread: Message failed to send");
                 ioe.printStackTrace();
+                batch.clear();
+                batch.limit(MAX_BATCH_BYTES);
             }
         }
+        ByteBufferPool.getHeapPool().release(batch);
     }
 }
@@ -1,12 +1,12 @@
 package cs455.overlay.transport;
 
-import cs455.overlay.node.MessagingNode;
-import cs455.overlay.node.Registry;
 import cs455.overlay.wireformats.Node;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 public class TCPServerThread implements Runnable {
     private ServerSocket serverSocket;
@@ -14,19 +14,39 @@ public class TCPServerThread implements Runnable {
 
     private boolean DEBUG = false;
 
-    public TCPServerThread(Node node) {
-        // Registry and MsgingNode each have their own serverSockets, typecast the node to call getServerSocket()
-        if (node instanceof Registry)
-            this.serverSocket = ((Registry) node).getServerSocket();
-        else
-            this.serverSocket = ((MessagingNode) node).getServerSocket();
+    // serverSocket: the socket the node listens on, see openServerSocket()
+    public TCPServerThread(ServerSocket serverSocket, Node node) {
+        this.serverSocket = serverSocket;
         this.node = node;
     }
 
+    /*  Creates the server socket a node listens on (portNum 0 picks any free port).
+        With the NIO transport the socket is backed by a ServerSocketChannel so the selector thread can accept on it  */
+    public static ServerSocket openServerSocket(int portNum) throws IOException {
+        if (TransportMode.current() == TransportMode.NIO) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(portNum));
+            return serverChannel.socket();
+        }
+        return new ServerSocket(portNum);
+    }
+
     public void run() {
         if (DEBUG)
             System.out.println("Starting TCPServerThread...");
 
+        /*  NIO transport: hand the server channel to the node's selector thread, which accepts the connections.
+            Nothing is left for this thread to do  */
+        if (serverSocket.getChannel() != null && TransportMode.current() == TransportMode.NIO) {
+            try {
+                TCPSelectorThread.getInstance(node).registerServer(serverSocket.getChannel());
+            } catch (IOException ioe) {
+                System.err.println("Unable to accept connections with the selector");
+                ioe.printStackTrace();
+            }
+            return;
+        }
+
         while(true) { // true so we can continue to listen for connections
             try {
                 /*  create a new socket with the incoming connection so we can pass it to
@@ -0,0 +1,31 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+// Connections over TCP sockets, with the blocking or NIO implementation per TransportMode
+public class TCPTransport implements Transport {
+    private static final TCPTransport INSTANCE = new TCPTransport();
+
+    private TCPTransport() {
+    }
+
+    public static TCPTransport getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public int listen(int portNum, Node node) throws IOException {
+        ServerSocket serverSocket = TCPServerThread.openServerSocket(portNum);
+        // have a thread run the server portion of the node so it can do other tasks while listening for connections
+        ThreadMode.start(new TCPServerThread(serverSocket, node), "TCPServerThread");
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public Connection connect(String IP, int portNum, Node node) throws IOException {
+        return TCPConnection.connect(IP, portNum, node);
+    }
+}
@@ -0,0 +1,105 @@
+package cs455.overlay.transport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Selects what kind of threads run the blocking transport's sender, receiver and accept loops. Chosen at startup with
+    -Dcs455.overlay.threads=<mode>.
+        platform: a regular OS thread for each loop
+        virtual:  a virtual thread for each loop (JDK 21+). A blocked read or a sender waiting for msgs parks the
+                  virtual thread and frees its carrier, so hundreds of connections only need a few OS threads.
+    Virtual threads are created through reflection so this still builds and runs on older JDKs,
+    where virtual falls back to platform.  */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static final String PROPERTY = "cs455.overlay.threads";
+
+    // resolved once, the first time a thread is started
+    private static volatile ThreadMode current;
+
+    // Thread.Builder.unstarted(Runnable) on a Thread.ofVirtual() builder, null if virtual threads are unavailable
+    private static Object virtualBuilder;
+    private static Method unstartedMethod;
+
+    // connection and accept loops started by start() that haven't finished yet
+    private static final AtomicInteger liveThreads = new AtomicInteger();
+
+    public static ThreadMode current() {
+        if (current == null) {
+            synchronized (ThreadMode.class) {
+                if (current == null)
+                    current = resolve();
+            }
+        }
+        return current;
+    }
+
+    private static ThreadMode resolve() {
+        String mode = System.getProperty(PROPERTY, "platform");
+        ThreadMode threadMode;
+        try {
+            threadMode = ThreadMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            System.err.printf("Unknown thread mode '%s', falling back to platform\n", mode);
+            return PLATFORM;
+        }
+        if (threadMode == PLATFORM)
+            return PLATFORM;
+
+        try {
+            virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstartedMethod = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            return VIRTUAL;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // JDK older than 21, or 19/20 without --enable-preview
+            System.err.printf("Virtual threads are not available on Java %s, falling back to platform threads\n",
+                    System.getProperty("java.version"));
+            return PLATFORM;
+        }
+    }
+
+    // Starts task on a new thread of the current mode
+    public static Thread start(Runnable task, String name) {
+        Runnable counted = () -> {
+            try {
+                task.run();
+            } finally {
+                liveThreads.decrementAndGet();
+            }
+        };
+
+        Thread thread;
+        if (current() == VIRTUAL) {
+            try {
+                thread = (Thread) unstartedMethod.invoke(virtualBuilder, counted);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // shouldn't happen once resolve() found the method; run it on a platform thread instead
+                System.err.println("Unable to create a virtual thread, using a platform thread");
+                e.printStackTrace();
+                thread = new Thread(counted);
+            }
+        } else {
+            thread = new Thread(counted);
+        }
+        thread.setName(name);
+        liveThreads.incrementAndGet();
+        thread.start();
+        return thread;
+    }
+
+    public static int getLiveThreads() {
+        return liveThreads.get();
+    }
+
+    // thread count and memory of this JVM, for comparing the modes
+    public static String diagnostics() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        return String.format("Thread mode: %s\nConnection/accept threads: %d\nPlatform threads in JVM: %d\nHeap used: %d KiB\n",
+                current(), getLiveThreads(), ManagementFactory.getThreadMXBean().getThreadCount(), usedHeap / 1024);
+    }
+}
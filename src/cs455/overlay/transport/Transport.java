@@ -0,0 +1,24 @@
+package cs455.overlay.transport;
+
+import cs455.overlay.wireformats.Node;
+
+import java.io.IOException;
+
+/*  How nodes listen for and open connections to each other. TCPTransport is the real network (blocking or NIO),
+    InMemoryTransport passes the msgs between nodes in the same process. Picked with -Dcs455.overlay.transport,
+    see TransportMode  */
+public interface Transport {
+    /*  Starts accepting connections for node on portNum (0 picks any free port). Connections other nodes open
+        are started right away, and their msgs passed to node.onEvent(). Returns the port being listened on  */
+    int listen(int portNum, Node node) throws IOException;
+
+    /*  Opens a connection to the node listening on IP:portNum. Msgs that arrive on it go to node.onEvent()
+        once it is started  */
+    Connection connect(String IP, int portNum, Node node) throws IOException;
+
+    static Transport current() {
+        if (TransportMode.current() == TransportMode.MEMORY)
+            return InMemoryTransport.getInstance();
+        return TCPTransport.getInstance();
+    }
+}
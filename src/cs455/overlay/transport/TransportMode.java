@@ -0,0 +1,24 @@
+package cs455.overlay.transport;
+
+/*  Selects how connections move bytes between nodes. Chosen at startup with
+    -Dcs455.overlay.transport=<mode> so both modes run from the same build.
+        blocking: one sender and one receiver thread per connection over java.net.Socket streams
+        nio:      one selector thread per node multiplexes all of the node's non-blocking SocketChannels
+        memory:   no sockets, msgs are passed between nodes in the same process (see InMemoryTransport)  */
+public enum TransportMode {
+    BLOCKING,
+    NIO,
+    MEMORY;
+
+    public static final String PROPERTY = "cs455.overlay.transport";
+
+    public static TransportMode current() {
+        String mode = System.getProperty(PROPERTY, "blocking");
+        try {
+            return TransportMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            System.err.printf("Unknown transport mode '%s', falling back to blocking\n", mode);
+            return BLOCKING;
+        }
+    }
+}
@@ -2,21 +2,30 @@ package cs455.overlay.util;
 
 import cs455.overlay.node.MessagingNode;
 import cs455.overlay.node.Registry;
+import cs455.overlay.routing.Endpoint;
 import cs455.overlay.routing.RoutingTable;
-import cs455.overlay.transport.TCPConnection;
-import cs455.overlay.transport.TCPConnectionsCache;
+import cs455.overlay.transport.Connection;
+import cs455.overlay.transport.ConnectionsCache;
+import cs455.overlay.transport.LinkCredits;
+import cs455.overlay.transport.ThreadMode;
 import cs455.overlay.wireformats.Node;
 import cs455.overlay.wireformats.OverlayNodeSendsDeregistration;
 import cs455.overlay.wireformats.RegistryRequestsTaskInitiate;
 import cs455.overlay.wireformats.RegistrySendsNodeManifest;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 public class InteractiveCommandParser {
     private boolean DEBUG = false;
 
+    // Share of the offered load a ramp step has to deliver for the overlay to count as keeping up with it
+    private static final double RAMP_TRACKING_RATIO = 0.9;
+    // How long a ramp step may take beyond its step-seconds before the ramp gives up on it
+    private static final long RAMP_STEP_TIMEOUT_MILLIS = 60000;
+
     // node allows the command parser to know whether it is parsing commands for the registry or the msging node
     private Node node;
 
@@ -43,10 +52,9 @@ public class InteractiveCommandParser {
 
         System.out.printf("There are currently (%d) messaging nodes registered:\n", registry.getRegisteredNodes().size());
 
-        for (Map.Entry<Integer, String> registeredNode : registry.getRegisteredNodes().entrySet()) {
-            // [0]: IP addr, [1]: portNum
-            String[] IPportNum = registeredNode.getValue().split(":");
-            System.out.printf("ID: %d\tIP: %s\tPort number: %s\n", registeredNode.getKey(), IPportNum[0], IPportNum[1]);
+        for (Map.Entry<Integer, Endpoint> registeredNode : registry.getRegisteredNodes().entrySet()) {
+            Endpoint endpoint = registeredNode.getValue();
+            System.out.printf("ID: %d\tIP: %s\tPort number: %d\n", registeredNode.getKey(), endpoint.getIP(), endpoint.getPortNum());
         }
     }
 
@@ -54,7 +62,7 @@ public class InteractiveCommandParser {
     public void setupOverlay(int routingTableSize) {
         Registry registry = (Registry) node;
 
-        if (registry.getNumNodesRegistered() == 0) {
+        if (registry.getRegisteredNodes().isEmpty()) {
             System.out.println("Cannot setup overlay with 0 nodes. Please register some nodes");
             return;
         }
@@ -63,50 +71,97 @@ public class InteractiveCommandParser {
 
 
         /*  Routing of msgs will deal only with the nodes that are registered at the
-            time of setup-overlay being called  */
-        registry.setNumNodesRegistered(registry.getRegisteredNodes().size());
+            time of setup-overlay being called. Nodes may still be registering, so take a snapshot of them  */
+        ArrayList<Map.Entry<Integer, Endpoint>> registeredNodesList = new ArrayList<>(registry.getRegisteredNodes().entrySet());
+        registry.setNumNodesRegistered(registeredNodesList.size());
         System.out.printf("Executing setup-overlay with (%d) registered nodes and routing table size (%d)...\n", registry.getNumNodesRegistered(), routingTableSize);
 
-        // Transfer the entries from the HashMap into an ArrayList for faster iteration
-        ArrayList<Map.Entry<Integer, String>> registeredNodesList = new ArrayList<>(registry.getRegisteredNodes().entrySet());
+        // Transfer the entries into arrays for faster iteration, in ID order
+        int numNodes = registeredNodesList.size();
+        int[] nodeIDs = new int[numNodes];
+        Endpoint[] endpoints = new Endpoint[numNodes];
+        ArrayList<Integer> registeredNodeIDs = new ArrayList<>(numNodes);
+        int nodeIndex = 0;
+        for (Map.Entry<Integer, Endpoint> registeredNode : registeredNodesList) {
+            nodeIDs[nodeIndex] = registeredNode.getKey();
+            endpoints[nodeIndex] = registeredNode.getValue();
+            registeredNodeIDs.add(registeredNode.getKey());
+            ++nodeIndex;
+        }
 
-        // TLDR: If routingTableSize >  2 * Nr, it will work
-        //       If routingTableSize <= 2 * Nr, it could end up in its own routing tbl, report an error to user? you decide how to handle
-        for (int nodeIndex = 0; nodeIndex < registeredNodesList.size(); ++nodeIndex) {
-            RoutingTable routingTable = new RoutingTable();
-            for (int entry = 0; entry < routingTableSize; ++entry) {
-                // ID space wraps around, so have to mod the hopsAway by the num of registered nodes
-                // number of hops to get to the next node
-                int hopsAway = ((int) Math.pow(2, entry));
-                // add the number of hops to the current node's index to get the index of the node it should add for this entry
-                int indexAtHopsAway = (nodeIndex + hopsAway) % registeredNodesList.size();
-
-                int ID = registeredNodesList.get(indexAtHopsAway).getKey();
-                String IPportNumStr = registeredNodesList.get(indexAtHopsAway).getValue();
-                routingTable.addRoutingEntry(ID, IPportNumStr);
-            }
+        RoutingTable[] routingTables = buildRoutingTables(nodeIDs, endpoints, routingTableSize);
+        byte[][] nodeManifests = encodeNodeManifests(routingTables, registeredNodeIDs);
 
+        for (nodeIndex = 0; nodeIndex < numNodes; ++nodeIndex) {
             // Store the routing table so it's easy to display them for the user on list-routing-tables command
-            int nodeID = registeredNodesList.get(nodeIndex).getKey();
-            registry.getNodeRoutingTables().put(nodeID, routingTable);
+            registry.getNodeRoutingTables().put(nodeIDs[nodeIndex], routingTables[nodeIndex]);
 
             // Look at IDs in each routing tbl. Easier to see which nodes in which routing tbls and to spot if a node is in its own tbl.
             if (DEBUG)
-                System.out.printf("Routing table for node %d is:\n%s", nodeID, routingTable);
+                System.out.printf("Routing table for node %d is:\n%s", nodeIDs[nodeIndex], routingTables[nodeIndex]);
 
             /*  Retrieve the connection to the current node and send it its routing table and info about all nodes in the system  */
-            try {
-                String IPportNumStr = registeredNodesList.get(nodeIndex).getValue();
-                TCPConnection connection = registry.getConnectionsCache().getConnection(IPportNumStr);
-                ArrayList<Integer> registeredNodeIds = new ArrayList<>(registry.getRegisteredNodes().keySet());
-                RegistrySendsNodeManifest nodeManifest = new RegistrySendsNodeManifest(routingTable, registry.getRegisteredNodes().size(), registeredNodeIds);
-                connection.getSenderThread().addMessage(nodeManifest.getBytes());
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
+            Connection connection = registry.getConnectionsCache().getConnection(endpoints[nodeIndex].toString());
+            connection.sendMessage(nodeManifests[nodeIndex]);
         }
     }
 
+    /*  Routing table of every node, nodeIDs in ascending order and endpoints the nodes' endpoints in the same order.
+        The tables are independent of each other, so they are built on the common fork-join pool, a range of nodes per
+        task, which keeps setup-overlay for thousands of nodes from waiting on one core  */
+    public static RoutingTable[] buildRoutingTables(int[] nodeIDs, Endpoint[] endpoints, int routingTableSize) {
+        int numNodes = nodeIDs.length;
+        RoutingTable[] routingTables = new RoutingTable[numNodes];
+
+        // TLDR: If routingTableSize >  2 * Nr, it will work
+        //       If routingTableSize <= 2 * Nr, it could end up in its own routing tbl, report an error to user? you decide how to handle
+        IntStream.range(0, numNodes).parallel().forEach(nodeIndex -> {
+            RoutingTable routingTable = new RoutingTable(routingTableSize);
+            for (int entry = 0; entry < routingTableSize; ++entry) {
+                int indexAtHopsAway = indexAtHopsAway(nodeIndex, entry, numNodes);
+                routingTable.addRoutingEntry(nodeIDs[indexAtHopsAway], endpoints[indexAtHopsAway]);
+            }
+            routingTables[nodeIndex] = routingTable;
+        });
+
+        /*  When two nodes have each other in their routing tables, only the one with the lower ID connects and the
+            other uses that connection both ways, so each pair shares one connection (and its threads).
+            Only reads the other tables, so this is done in parallel too once they are all built  */
+        IntStream.range(0, numNodes).parallel().forEach(nodeIndex -> {
+            int nodeID = nodeIDs[nodeIndex];
+            RoutingTable routingTable = routingTables[nodeIndex];
+            for (int entry = 0; entry < routingTable.size(); ++entry) {
+                int entryIndex = indexAtHopsAway(nodeIndex, entry, numNodes);
+                routingTable.setAwaitsConnection(entry, nodeIDs[entryIndex] < nodeID && routingTables[entryIndex].contains(nodeID));
+            }
+        });
+
+        return routingTables;
+    }
+
+    // Index of the node 2^entry hops away from the node at nodeIndex
+    private static int indexAtHopsAway(int nodeIndex, int entry, int numNodes) {
+        // ID space wraps around, so have to mod the hopsAway by the num of registered nodes
+        // number of hops to get to the next node, as a long so large routing tables don't overflow it
+        long hopsAway = 1L << entry;
+        // add the number of hops to the current node's index to get the index of the node it should add for this entry
+        return (int) ((nodeIndex + hopsAway) % numNodes);
+    }
+
+    /*  The node manifest for each routing table, marshalled. The list of node IDs every manifest ends with is encoded
+        once and copied into each of them, the manifests themselves are encoded in parallel  */
+    public static byte[][] encodeNodeManifests(RoutingTable[] routingTables, ArrayList<Integer> registeredNodeIDs) {
+        byte[] encodedMembership = RegistrySendsNodeManifest.encodeMembership(registeredNodeIDs.size(), registeredNodeIDs);
+        byte[][] nodeManifests = new byte[routingTables.length][];
+        IntStream.range(0, routingTables.length).parallel().forEach(nodeIndex -> {
+            RegistrySendsNodeManifest nodeManifest = new RegistrySendsNodeManifest(routingTables[nodeIndex],
+                    registeredNodeIDs.size(), registeredNodeIDs, encodedMembership);
+            nodeManifests[nodeIndex] = new byte[nodeManifest.encodedSize()];
+            nodeManifest.encode(ByteBuffer.wrap(nodeManifests[nodeIndex]));
+        });
+        return nodeManifests;
+    }
+
     // list-routing-tables
     // Info about routing tbls of each node
     public void listRoutingTables() {
@@ -131,31 +186,113 @@ public class InteractiveCommandParser {
     // start number-of-messages (e.g. start 25000)
     // Send all nodes a request to start sending number-of-messages to random nodes in the system
     public void start(int numMessages) {
+        start(numMessages, 0);
+    }
+
+    // start number-of-messages packets-per-second (e.g. start 25000 5000)
+    // Same as above, but every node paces its packets to packets-per-second (0 sends as fast as possible)
+    public boolean start(int numMessages, int packetsPerSecond) {
         if (!overlayWasSetup) {
             System.out.println("Overlay has not been setup yet. Please run setup-overlay first");
-            return;
+            return false;
         }
 
         if (DEBUG)
-            System.out.printf("Executing start %d...\n", numMessages);
+            System.out.printf("Executing start %d %d...\n", numMessages, packetsPerSecond);
 
         Registry registry = (Registry) node;
 
         if (registry.getNumNodesEstablishedConnections() == registry.getNumNodesRegistered()) {
-            RegistryRequestsTaskInitiate taskInitiate = new RegistryRequestsTaskInitiate(numMessages);
-            for (Map.Entry<Integer, String> entry : registry.getRegisteredNodes().entrySet()) {
-                try {
-                    // get the connection associated with the IPportNumStr of the current registered node
-                    String IPportNumStr = entry.getValue();
-                    TCPConnection connection = registry.getConnectionsCache().getConnection(IPportNumStr);
-                    connection.getSenderThread().addMessage(taskInitiate.getBytes());
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                }
+            // the same msg for every node, marshalled once
+            RegistryRequestsTaskInitiate taskInitiateMsg = new RegistryRequestsTaskInitiate(numMessages, packetsPerSecond);
+            byte[] taskInitiate = new byte[taskInitiateMsg.encodedSize()];
+            taskInitiateMsg.encode(ByteBuffer.wrap(taskInitiate));
+            for (Map.Entry<Integer, Endpoint> entry : registry.getRegisteredNodes().entrySet()) {
+                // get the connection associated with the IP:port of the current registered node
+                Endpoint endpoint = entry.getValue();
+                Connection connection = registry.getConnectionsCache().getConnection(endpoint.toString());
+                connection.sendMessage(taskInitiate);
             }
+            return true;
         } else {
             System.out.println("Not all nodes have successfully established connections with messaging nodes in their routing tables yet");
+            return false;
+        }
+    }
+
+    /*  ramp start-rate step-rate max-rate step-seconds (e.g. ramp 1000 1000 20000 5)
+        Finds the throughput knee of the overlay: runs a paced start of step-seconds at start-rate packets/sec per node,
+        then at start-rate + step-rate, and so on up to max-rate, and after each run compares the rate the packets
+        were delivered at to the rate they were offered at. Once the overlay delivers less than RAMP_TRACKING_RATIO of
+        the offered load it has stopped keeping up, and the last step it kept up with is reported as the sustainable
+        throughput. A warm up step at start-rate runs first and isn't counted, the JIT makes cold nodes fall behind.
+        Blocks the command line until the ramp is done  */
+    public void ramp(int startRate, int stepRate, int maxRate, int stepSeconds) {
+        if (startRate <= 0 || stepRate <= 0 || stepSeconds <= 0) {
+            System.out.println("Ramp rates and step-seconds have to be positive");
+            return;
+        }
+
+        Registry registry = (Registry) node;
+        StatisticsCollectorAndDisplay statCollector = registry.getStatCollector();
+        int numNodes = registry.getNumNodesRegistered();
+        // the last step that kept up
+        int kneeRate = 0;
+        double kneeDeliveredRate = 0;
+
+        if (runRampStep(statCollector, startRate, stepSeconds) < 0)
+            return;
+        System.out.printf("Ramp: warmed up at %d packets/sec per node\n", startRate);
+
+        for (int rate = startRate; rate <= maxRate; rate += stepRate) {
+            double seconds = runRampStep(statCollector, rate, stepSeconds);
+            if (seconds < 0)
+                return;
+
+            double offeredRate = (double) rate * numNodes;
+            double deliveredRate = statCollector.getLastTotalPacketsRcvd() / seconds;
+            LogHistogram latency = statCollector.getLastLatencyHistogram();
+            String latencyStr = latency.getTotalCount() > 0 ? String.format(", latency p50 %d us p99 %d us", latency.getValueAtPercentile(50), latency.getValueAtPercentile(99)) : "";
+            System.out.printf("Ramp: offered %.0f packets/sec (%d per node), delivered %.0f packets/sec (%.0f%%)%s\n",
+                    offeredRate, rate, deliveredRate, 100 * deliveredRate / offeredRate, latencyStr);
+
+            if (!statCollector.lastSummaryMatched()) {
+                System.out.println("Ramp: traffic summary totals didn't match, stopping");
+                return;
+            }
+            if (deliveredRate < RAMP_TRACKING_RATIO * offeredRate) {
+                if (kneeRate == 0)
+                    System.out.printf("Ramp: the overlay couldn't keep up with the first step, the knee is below %d packets/sec per node\n", rate);
+                else
+                    System.out.printf("Ramp: knee at %d packets/sec per node, the overlay sustains about %.0f packets/sec\n", kneeRate, kneeDeliveredRate);
+                return;
+            }
+            kneeRate = rate;
+            kneeDeliveredRate = deliveredRate;
         }
+        System.out.printf("Ramp: kept up all the way to %d packets/sec per node (%.0f packets/sec), the knee is higher\n", kneeRate, kneeDeliveredRate);
+    }
+
+    // One paced start of stepSeconds at rate. Returns the seconds until the traffic summary was in, or -1 if it failed
+    private double runRampStep(StatisticsCollectorAndDisplay statCollector, int rate, int stepSeconds) {
+        int numPrinted = statCollector.getNumSummariesPrinted();
+        int numMessages = (int) Math.min(Integer.MAX_VALUE, (long) rate * stepSeconds);
+
+        long startTime = System.nanoTime();
+        if (!start(numMessages, rate))
+            return -1;
+        try {
+            // a step is over once the registry has the traffic summaries, which is once every packet was delivered
+            if (!statCollector.awaitTrafficSummary(numPrinted, stepSeconds * 1000L + RAMP_STEP_TIMEOUT_MILLIS)) {
+                System.out.printf("Ramp: no traffic summary within %d s of starting the %d packets/sec step, stopping\n",
+                        stepSeconds + RAMP_STEP_TIMEOUT_MILLIS / 1000, rate);
+                return -1;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return (System.nanoTime() - startTime) / 1e9;
     }
     /* END Registry COMMANDS */
 
@@ -169,16 +306,24 @@ public class InteractiveCommandParser {
 
         MessagingNode msgNode = (MessagingNode) node;
 
+        TrafficTrackers.Snapshot trackers = msgNode.getTrackers();
         System.out.printf("-- Trackers and Summations --\nsndTracker: %d\nrcvTracker: %d\nrelayTracker: %d\nsndSummation: %d\nrcvSummation: %d\n",
-                            msgNode.getSndTracker(), msgNode.getRcvTracker(), msgNode.getRelayTracker(), msgNode.getSndSummation(), msgNode.getRcvSummation());
+                            trackers.getSndTracker(), trackers.getRcvTracker(), trackers.getRelayTracker(), trackers.getSndSummation(), trackers.getRcvSummation());
+
+        // how many threads and how much memory this node's connections are using
+        System.out.printf("-- Threads and Memory --\n%s", ThreadMode.diagnostics());
+
+        // how often the links ran out of credits
+        System.out.printf("-- Flow Control --\nCredit window: %s\nSrc waits for credits: %d\nRelays sent on overdraft: %d\n",
+                LinkCredits.isEnabled() ? LinkCredits.WINDOW + " data packets per link" : "off", LinkCredits.getTotalSrcWaits(), LinkCredits.getTotalOverdrafts());
     }
 
     // Was used to debug the wait-notify msg queue implementation
     public void printMsgQueueSize() {
         MessagingNode msgNode = (MessagingNode)node;
-        TCPConnectionsCache cc = msgNode.getConnectionsCache();
-        for (Map.Entry<String, TCPConnection> entry : cc.getEntrySet()) {
-            System.out.printf("Msg queue size: %d\n", entry.getValue().getSenderThread().getMsgQueueSize());
+        ConnectionsCache cc = msgNode.getConnectionsCache();
+        for (Map.Entry<String, Connection> entry : cc.getEntrySet()) {
+            System.out.printf("Msg queue size: %d\n", entry.getValue().getMsgQueueSize());
         }
     }
 
@@ -191,13 +336,9 @@ public class InteractiveCommandParser {
         OverlayNodeSendsDeregistration nodeDeregistration = new OverlayNodeSendsDeregistration(msgNode.getIP(), msgNode.getPortNum(), msgNode.getID());
 
         // Retrieve connection to registry and send a deregistration request
-        try {
-            String registryIPportNumStr = msgNode.getRegistryIPportNumStr();
-            TCPConnection registryConnection = msgNode.getConnectionsCache().getConnection(registryIPportNumStr);
-            registryConnection.getSenderThread().addMessage(nodeDeregistration.getBytes());
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+        String registryIPportNumStr = msgNode.getRegistryIPportNumStr();
+        Connection registryConnection = msgNode.getConnectionsCache().getConnection(registryIPportNumStr);
+        registryConnection.sendEvent(nodeDeregistration);
     }
 
     /* END MessagingNode COMMANDS */
@@ -0,0 +1,106 @@
+package cs455.overlay.util;
+
+import cs455.overlay.wireformats.OverlayNodeReportsLiveStats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*  Registry side of the live stats. Keeps the latest report of every node and turns them into one rolling line for
+    the whole overlay: packets/sec sent, relayed and received, the msgs waiting in sender queues, the deepest queue,
+    the slowest node still sending, and the nodes that stopped reporting (stalled or gone)  */
+public class LiveStatsMonitor {
+    // a node that hasn't reported for this many intervals is listed as silent
+    private static final int SILENT_INTERVALS = 3;
+
+    private static class NodeStats {
+        long reportedAtMillis;
+        double sentPerSec;
+        double relayedPerSec;
+        double rcvdPerSec;
+        int queuedMsgs;
+        int maxQueuedMsgs;
+    }
+
+    private HashMap<Integer, NodeStats> nodeStats = new HashMap<>();
+    // reports since the last line was printed; no line is printed while the overlay is idle
+    private int numReportsSincePrint = 0;
+    private long startMillis = -1;
+
+    public synchronized void addLiveStats(OverlayNodeReportsLiveStats liveStats) {
+        long nowMillis = System.currentTimeMillis();
+        if (startMillis < 0)
+            startMillis = nowMillis;
+
+        NodeStats stats = nodeStats.computeIfAbsent(liveStats.getID(), ID -> new NodeStats());
+        double seconds = Math.max(1, liveStats.getIntervalMillis()) / 1000.0;
+        stats.reportedAtMillis = nowMillis;
+        stats.sentPerSec = liveStats.getPacketsSent() / seconds;
+        stats.relayedPerSec = liveStats.getPacketsRelayed() / seconds;
+        stats.rcvdPerSec = liveStats.getPacketsRcvd() / seconds;
+        stats.queuedMsgs = liveStats.getQueuedMsgs();
+        stats.maxQueuedMsgs = liveStats.getMaxQueuedMsgs();
+        ++numReportsSincePrint;
+    }
+
+    // Forget the nodes' stats, e.g. when a run is over, so the next run starts from a clean view
+    public synchronized void clear() {
+        nodeStats.clear();
+        numReportsSincePrint = 0;
+        startMillis = -1;
+    }
+
+    /*  One line describing the overlay right now, or null if no node reported since the last call.
+        intervalMillis: how often nodes report  */
+    public synchronized String summarize(long intervalMillis) {
+        if (numReportsSincePrint == 0)
+            return null;
+        numReportsSincePrint = 0;
+
+        long nowMillis = System.currentTimeMillis();
+        double sentPerSec = 0;
+        double relayedPerSec = 0;
+        double rcvdPerSec = 0;
+        long queuedMsgs = 0;
+        int deepestQueue = 0;
+        int deepestQueueNode = -1;
+        int slowestNode = -1;
+        double slowestSentPerSec = Double.MAX_VALUE;
+        int numReporting = 0;
+        ArrayList<Integer> silentNodes = new ArrayList<>();
+
+        for (Map.Entry<Integer, NodeStats> entry : nodeStats.entrySet()) {
+            int nodeID = entry.getKey();
+            NodeStats stats = entry.getValue();
+            if (nowMillis - stats.reportedAtMillis > SILENT_INTERVALS * intervalMillis) {
+                silentNodes.add(nodeID);
+                continue;
+            }
+            ++numReporting;
+            sentPerSec += stats.sentPerSec;
+            relayedPerSec += stats.relayedPerSec;
+            rcvdPerSec += stats.rcvdPerSec;
+            queuedMsgs += stats.queuedMsgs;
+            if (stats.maxQueuedMsgs > deepestQueue) {
+                deepestQueue = stats.maxQueuedMsgs;
+                deepestQueueNode = nodeID;
+            }
+            // nodes that are done sending have a rate of 0, they aren't slow
+            if (stats.sentPerSec > 0 && stats.sentPerSec < slowestSentPerSec) {
+                slowestSentPerSec = stats.sentPerSec;
+                slowestNode = nodeID;
+            }
+        }
+
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("[live %6.1fs] %d nodes | sent %.0f/s relayed %.0f/s rcvd %.0f/s | queued %d msgs",
+                (nowMillis - startMillis) / 1000.0, numReporting, sentPerSec, relayedPerSec, rcvdPerSec, queuedMsgs));
+        if (deepestQueueNode >= 0)
+            line.append(String.format(", deepest %d at node %d", deepestQueue, deepestQueueNode));
+        if (slowestNode >= 0)
+            line.append(String.format(" | slowest sender node %d at %.0f/s", slowestNode, slowestSentPerSec));
+        if (!silentNodes.isEmpty())
+            line.append(" | silent: ").append(silentNodes);
+        return line.toString();
+    }
+}
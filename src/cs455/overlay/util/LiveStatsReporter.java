@@ -0,0 +1,93 @@
+package cs455.overlay.util;
+
+import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.transport.Connection;
+import cs455.overlay.wireformats.OverlayNodeReportsLiveStats;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*  Pushes a msging node's stats to the registry every interval while a run is going on: the packets sent, relayed
+    and received since the last report, and its sender queue depths. Reads the trackers without resetting them,
+    so the traffic summary at the end of the run is unaffected.
+    -Dcs455.overlay.stats.intervalMillis (default 1000, 0 turns live stats off)  */
+public class LiveStatsReporter implements Runnable {
+    public static final long INTERVAL_MILLIS = Long.getLong("cs455.overlay.stats.intervalMillis", 1000);
+
+    // one thread sends the reports of every node in the process, the reports are tiny
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LiveStatsReporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int nodeID;
+    private final TrafficTrackers trackers;
+    private final Connection registryConnection;
+    private final RoutingTable routingTable;
+
+    private ScheduledFuture<?> task;
+
+    // trackers at the last report, to work out the counts for the interval
+    private TrafficTrackers.Snapshot last;
+    private long lastNanos;
+
+    public LiveStatsReporter(int nodeID, TrafficTrackers trackers, Connection registryConnection, RoutingTable routingTable) {
+        this.nodeID = nodeID;
+        this.trackers = trackers;
+        this.registryConnection = registryConnection;
+        this.routingTable = routingTable;
+    }
+
+    // Starts reporting every interval, unless live stats are off or it is already reporting
+    public synchronized void start() {
+        if (INTERVAL_MILLIS <= 0 || task != null)
+            return;
+        last = trackers.snapshot();
+        lastNanos = System.nanoTime();
+        task = TIMER.scheduleAtFixedRate(this, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    // a traffic summary resets the trackers; counts after that are all new
+    private static long delta(long now, long before) {
+        return now >= before ? now - before : now;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (task == null)
+            return;
+
+        TrafficTrackers.Snapshot now = trackers.snapshot();
+        long nowNanos = System.nanoTime();
+
+        int queuedMsgs = 0;
+        int maxQueuedMsgs = 0;
+        for (int i = 0; i < routingTable.size(); ++i) {
+            Connection connection = routingTable.getConnection(i);
+            if (connection == null)
+                continue;
+            int queued = connection.getMsgQueueSize();
+            queuedMsgs += queued;
+            maxQueuedMsgs = Math.max(maxQueuedMsgs, queued);
+        }
+
+        OverlayNodeReportsLiveStats liveStats = new OverlayNodeReportsLiveStats(nodeID, (int) ((nowNanos - lastNanos) / 1_000_000),
+                delta(now.getSndTracker(), last.getSndTracker()), delta(now.getRelayTracker(), last.getRelayTracker()),
+                delta(now.getRcvTracker(), last.getRcvTracker()), queuedMsgs, maxQueuedMsgs);
+        // never wait on the registry connection, the next report replaces this one anyway
+        registryConnection.relayEvent(liveStats);
+
+        last = now;
+        lastNanos = nowNanos;
+    }
+}
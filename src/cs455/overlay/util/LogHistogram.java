@@ -0,0 +1,151 @@
+package cs455.overlay.util;
+
+import cs455.overlay.wireformats.VarInt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/*  Histogram of non negative longs (latencies in microseconds, hop counts) in log scale buckets: values below 16 get
+    a bucket each, above that every power of two is split into 8 buckets, so a value is off by at most 1/8 (12.5%)
+    from the bucket it is counted in. A fixed 488 buckets cover the whole long range, so recording is a shift and
+    an increment, with no allocation and nothing to resize.
+    Recording is only safe from one thread (TrafficTrackers gives each thread a histogram of its own); other threads
+    may read the counts while it records, they see every bucket as it was at some recent point  */
+public class LogHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] counts = new long[NUM_BUCKETS];
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return value < 0 ? 0 : (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that is counted in the bucket
+    static long bucketHighestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    // Only the thread that owns this histogram may record into it
+    public void record(long value) {
+        int index = bucketIndex(value);
+        COUNTS.setOpaque(counts, index, counts[index] + 1);
+    }
+
+    // Adds the counts of other into this histogram
+    public void add(LogHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; ++i)
+            counts[i] += (long) COUNTS.getOpaque(other.counts, i);
+    }
+
+    /*  Replaces the counts of this histogram with the counts of other, in one bulk copy. The reads aren't ordered with
+        the owner's records, so a reader that needs them exact has to check the owner didn't record during the copy
+        (see TrafficTrackers)  */
+    public void copyFrom(LogHistogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, NUM_BUCKETS);
+    }
+
+    // Counts in this histogram that aren't in baseline, an earlier copy of it
+    public LogHistogram minus(LogHistogram baseline) {
+        LogHistogram difference = new LogHistogram();
+        for (int i = 0; i < NUM_BUCKETS; ++i)
+            difference.counts[i] = counts[i] - baseline.counts[i];
+        return difference;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        return total;
+    }
+
+    /*  The value below which percentile % of the recorded values fall (e.g. 99.9), as the largest value of the
+        bucket it is in. 0 if nothing was recorded  */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank)
+                return bucketHighestValue(i);
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = NUM_BUCKETS - 1; i >= 0; --i) {
+            if (counts[i] != 0)
+                return bucketHighestValue(i);
+        }
+        return 0;
+    }
+
+    // p50/p99/p99.9/max and how many values were recorded, e.g. for a line of the traffic summary
+    public String toPercentileString() {
+        return String.format("p50 %d  p99 %d  p99.9 %d  max %d  (%d packets)", getValueAtPercentile(50),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMax(), getTotalCount());
+    }
+
+    // Only the buckets with counts are sent
+    public int encodedSize() {
+        int size = 4;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            if (counts[i] != 0)
+                size += VarInt.size(i) + 8;
+        }
+        return size;
+    }
+
+    public void encode(ByteBuffer buffer) {
+        /*
+            int: number of buckets that follow
+            for each bucket with a count:
+                varint: bucket index
+                long:   count
+         */
+        int numBuckets = 0;
+        for (long count : counts) {
+            if (count != 0)
+                ++numBuckets;
+        }
+        buffer.putInt(numBuckets);
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            if (counts[i] != 0) {
+                VarInt.put(buffer, i);
+                buffer.putLong(counts[i]);
+            }
+        }
+    }
+
+    // Reads a histogram written by encode(). Throws IllegalArgumentException if it is malformed
+    public static LogHistogram decode(ByteBuffer buffer) {
+        LogHistogram histogram = new LogHistogram();
+        int numBuckets = buffer.getInt();
+        if (numBuckets < 0 || numBuckets > NUM_BUCKETS)
+            throw new IllegalArgumentException("Histogram has " + numBuckets + " buckets");
+        for (int i = 0; i < numBuckets; ++i) {
+            int index = VarInt.get(buffer);
+            if (index < 0 || index >= NUM_BUCKETS)
+                throw new IllegalArgumentException("Histogram bucket " + index + " is out of range");
+            histogram.counts[index] = buffer.getLong();
+        }
+        return histogram;
+    }
+}
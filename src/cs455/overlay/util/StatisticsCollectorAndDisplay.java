@@ -7,6 +7,15 @@ import java.util.ArrayList;
 public class StatisticsCollectorAndDisplay {
     private ArrayList<OverlayNodeReportsTrafficSummary> trafficSummaries;
 
+    // Totals of the last printed summary, and how many summaries have been printed, so a harness can check a run
+    private int numSummariesPrinted = 0;
+    private long lastTotalPacketsSnt = 0;
+    private long lastTotalPacketsRcvd = 0;
+    private long lastTotalPacketsSntSummation = 0;
+    private long lastTotalPacketsRcvdSummation = 0;
+    private LogHistogram lastHopHistogram = new LogHistogram();
+    private LogHistogram lastLatencyHistogram = new LogHistogram();
+
     public StatisticsCollectorAndDisplay() {
         this.trafficSummaries = new ArrayList<>();
     }
@@ -19,13 +28,16 @@ public class StatisticsCollectorAndDisplay {
         trafficSummaries.clear();
     }
 
-    public void printTrafficSummary() {
+    public synchronized void printTrafficSummary() {
         // Cumulative totals across all nodes
-        int totalPacketsSnt = 0;
-        int totalPacketsRcvd = 0;
-        int totalPacketsRelayed = 0;
+        long totalPacketsSnt = 0;
+        long totalPacketsRcvd = 0;
+        long totalPacketsRelayed = 0;
         long totalPacketsSntSummation = 0;
         long totalPacketsRcvdSummation = 0;
+        // hop counts and latencies of every packet delivered, merged across the sinks
+        LogHistogram hopHistogram = new LogHistogram();
+        LogHistogram latencyHistogram = new LogHistogram();
 
         // Print out the table header
         System.out.printf ("%-20s %-20s %-20s %-20s %-20s %-20s\n", "Node", "Packets Sent", "Packets Received", "Packets Relayed", "Sum Values Sent", "Sum Values Received");
@@ -33,9 +45,9 @@ public class StatisticsCollectorAndDisplay {
         // Print the summaries for each node
         for (OverlayNodeReportsTrafficSummary trafficSummary : trafficSummaries) {
             int nodeID = trafficSummary.getID();
-            int packetsSnt = trafficSummary.getTotalPacketsSent();
-            int packetsRcvd = trafficSummary.getTotalPacketsRcvd();
-            int packetsRelayed = trafficSummary.getTotalPacketsRelayed();
+            long packetsSnt = trafficSummary.getTotalPacketsSent();
+            long packetsRcvd = trafficSummary.getTotalPacketsRcvd();
+            long packetsRelayed = trafficSummary.getTotalPacketsRelayed();
             long packetsSntSummation = trafficSummary.getSendSummation();
             long packetsRcvdSummation = trafficSummary.getRcvSummation();
 
@@ -48,14 +60,72 @@ public class StatisticsCollectorAndDisplay {
             totalPacketsRelayed += packetsRelayed;
             totalPacketsSntSummation += packetsSntSummation;
             totalPacketsRcvdSummation += packetsRcvdSummation;
+            hopHistogram.add(trafficSummary.getHopHistogram());
+            latencyHistogram.add(trafficSummary.getLatencyHistogram());
         }
 
         // Print the cumulative totals
         System.out.printf ("%-20s %-20d %-20d %-20d %-20d %-20d\n", "Sum",
                 totalPacketsSnt, totalPacketsRcvd, totalPacketsRelayed, totalPacketsSntSummation, totalPacketsRcvdSummation);
 
+        // Percentiles are the top of the log bucket they fall in, so they are within 12.5% of the actual value
+        System.out.println("Hops:            " + hopHistogram.toPercentileString());
+        if (latencyHistogram.getTotalCount() > 0)
+            System.out.println("Latency (us):    " + latencyHistogram.toPercentileString());
+        else
+            System.out.println("Latency (us):    not measured, send with -Dcs455.overlay.data.timestamps=true");
+
+        lastTotalPacketsSnt = totalPacketsSnt;
+        lastTotalPacketsRcvd = totalPacketsRcvd;
+        lastTotalPacketsSntSummation = totalPacketsSntSummation;
+        lastTotalPacketsRcvdSummation = totalPacketsRcvdSummation;
+        lastHopHistogram = hopHistogram;
+        lastLatencyHistogram = latencyHistogram;
+        ++numSummariesPrinted;
+        // wake up anyone waiting in awaitTrafficSummary()
+        notifyAll();
+
         // Clear the traffic summaries so printing only correspods to the stats of a particular run
         // Allows us to get correct numbers for successive runs
         clearTrafficSummaries();
     }
+
+    public synchronized int getNumSummariesPrinted() {
+        return numSummariesPrinted;
+    }
+
+    public synchronized long getLastTotalPacketsSent() {
+        return lastTotalPacketsSnt;
+    }
+
+    public synchronized long getLastTotalPacketsRcvd() {
+        return lastTotalPacketsRcvd;
+    }
+
+    public synchronized LogHistogram getLastHopHistogram() {
+        return lastHopHistogram;
+    }
+
+    // Empty if the packets of the last run carried no timestamps
+    public synchronized LogHistogram getLastLatencyHistogram() {
+        return lastLatencyHistogram;
+    }
+
+    // Every packet sent in the last run was received, and the payloads add up to the same sum
+    public synchronized boolean lastSummaryMatched() {
+        return lastTotalPacketsSnt == lastTotalPacketsRcvd && lastTotalPacketsSntSummation == lastTotalPacketsRcvdSummation;
+    }
+
+    /*  Waits until more than numPrinted summaries have been printed (pass getNumSummariesPrinted() from before the run).
+        Returns false if that didn't happen within timeoutMillis  */
+    public synchronized boolean awaitTrafficSummary(int numPrinted, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (numSummariesPrinted <= numPrinted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
 }
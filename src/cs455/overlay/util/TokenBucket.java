@@ -0,0 +1,45 @@
+package cs455.overlay.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*  Paces a sender to tokensPerSecond. Tokens are earned at a fixed rate whether or not the sender takes them, up to
+    burst of them saved, so a sender that was held up (e.g. by a full queue) catches up on the packets it owes instead
+    of pushing the whole schedule back. That keeps the offered load open loop: it doesn't go down because the overlay
+    is slow.
+    Only one thread may use a bucket, each sender thread has its own  */
+public class TokenBucket {
+    private final long intervalNanos;
+    // how far behind the schedule the bucket may fall before the tokens it would have earned are dropped
+    private final long burstNanos;
+    // when the next token is earned
+    private long nextTokenNanos;
+
+    public TokenBucket(double tokensPerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1e9 / tokensPerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.nextTokenNanos = System.nanoTime();
+    }
+
+    /*  Waits for a token and returns the System.nanoTime() it was due at, which is when the packet should have been
+        sent. Measuring latency from then, not from when the sender got around to it, counts the time a packet waited
+        behind a slow sender too  */
+    public long acquire() {
+        long now = System.nanoTime();
+        if (now - nextTokenNanos > burstNanos)
+            nextTokenNanos = now - burstNanos;
+        long due = nextTokenNanos;
+        nextTokenNanos += intervalNanos;
+
+        // parkNanos can wake up early, and is too coarse for sub-microsecond gaps, which the saved tokens make up for
+        while (due - now > 0) {
+            LockSupport.parkNanos(due - now);
+            now = System.nanoTime();
+        }
+        return due;
+    }
+
+    // Whether acquire() would return without waiting, e.g. so a sender can send what it has before it waits
+    public boolean isTokenDue() {
+        return System.nanoTime() - nextTokenNanos >= 0;
+    }
+}
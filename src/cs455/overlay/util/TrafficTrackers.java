@@ -0,0 +1,233 @@
+package cs455.overlay.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*  The send, receive and relay trackers and summations of a msging node.
+    Every thread that updates the trackers (the thread sending msgs and each receiver thread relaying or receiving them)
+    gets a cell of its own, so updates never take a lock or contend on a shared counter; the cells are padded so
+    two threads' cells never share a cache line. Counts are 64 bit so large runs can't overflow them.
+    Reading the trackers adds up every cell.  */
+public class TrafficTrackers {
+    // Padding in front of the counters. Superclass fields are laid out before subclass fields
+    private static class CellPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class CellCounters extends CellPadding {
+        /*  Odd while the owning thread is in the middle of an update. A reader retries if it saw an odd version
+            or the version changed while it read, so it never sees e.g. a packet's count without its payload,
+            or without its hop count and latency  */
+        long version;
+        long sndTracker;
+        long sndSummation;
+        long rcvTracker;
+        long rcvSummation;
+        long relayTracker;
+    }
+
+    // Only the thread that owns a cell writes to it
+    private static final class Cell extends CellCounters {
+        // padding behind the counters
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        // hop counts and latencies of the packets this thread received
+        final LogHistogram hopHistogram = new LogHistogram();
+        final LogHistogram latencyHistogram = new LogHistogram();
+    }
+
+    private static final VarHandle VERSION;
+    private static final VarHandle SND_TRACKER;
+    private static final VarHandle SND_SUMMATION;
+    private static final VarHandle RCV_TRACKER;
+    private static final VarHandle RCV_SUMMATION;
+    private static final VarHandle RELAY_TRACKER;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            VERSION = lookup.findVarHandle(CellCounters.class, "version", long.class);
+            SND_TRACKER = lookup.findVarHandle(CellCounters.class, "sndTracker", long.class);
+            SND_SUMMATION = lookup.findVarHandle(CellCounters.class, "sndSummation", long.class);
+            RCV_TRACKER = lookup.findVarHandle(CellCounters.class, "rcvTracker", long.class);
+            RCV_SUMMATION = lookup.findVarHandle(CellCounters.class, "rcvSummation", long.class);
+            RELAY_TRACKER = lookup.findVarHandle(CellCounters.class, "relayTracker", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Totals of the trackers and summations at one point in time
+    public static class Snapshot {
+        private long sndTracker;
+        private long sndSummation;
+        private long rcvTracker;
+        private long rcvSummation;
+        private long relayTracker;
+        // only filled in by snapshotAndReset(), reading them is too much work for every snapshot
+        private LogHistogram hopHistogram;
+        private LogHistogram latencyHistogram;
+
+        public long getSndTracker() {
+            return sndTracker;
+        }
+
+        public long getSndSummation() {
+            return sndSummation;
+        }
+
+        public long getRcvTracker() {
+            return rcvTracker;
+        }
+
+        public long getRcvSummation() {
+            return rcvSummation;
+        }
+
+        public long getRelayTracker() {
+            return relayTracker;
+        }
+
+        // Hops the packets received took to get here (relays + 1). null unless the snapshot came with a reset
+        public LogHistogram getHopHistogram() {
+            return hopHistogram;
+        }
+
+        /*  Microseconds from the src sending the packets received until they arrived, for the packets that carried
+            a timestamp. null unless the snapshot came with a reset  */
+        public LogHistogram getLatencyHistogram() {
+            return latencyHistogram;
+        }
+
+        private Snapshot minus(Snapshot other) {
+            Snapshot difference = new Snapshot();
+            difference.sndTracker = sndTracker - other.sndTracker;
+            difference.sndSummation = sndSummation - other.sndSummation;
+            difference.rcvTracker = rcvTracker - other.rcvTracker;
+            difference.rcvSummation = rcvSummation - other.rcvSummation;
+            difference.relayTracker = relayTracker - other.relayTracker;
+            return difference;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Cell> cells = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Cell> threadCell = ThreadLocal.withInitial(() -> {
+        Cell cell = new Cell();
+        cells.add(cell);
+        return cell;
+    });
+
+    /*  Cells are never reset, since only their owners may write them. Instead a reset remembers the totals
+        at that point, and snapshot() reports the totals since then  */
+    private Snapshot baseline = new Snapshot();
+    private LogHistogram hopBaseline = new LogHistogram();
+    private LogHistogram latencyBaseline = new LogHistogram();
+
+    public void recordSent(int payload) {
+        Cell cell = threadCell.get();
+        beginUpdate(cell);
+        SND_TRACKER.setOpaque(cell, cell.sndTracker + 1);
+        SND_SUMMATION.setOpaque(cell, cell.sndSummation + payload);
+        endUpdate(cell);
+    }
+
+    /*  hops: relays the packet went through + 1
+        latencyMicros: time since the src sent the packet, or -1 if it carried no timestamp  */
+    public void recordReceived(int payload, int hops, long latencyMicros) {
+        Cell cell = threadCell.get();
+        beginUpdate(cell);
+        RCV_TRACKER.setOpaque(cell, cell.rcvTracker + 1);
+        RCV_SUMMATION.setOpaque(cell, cell.rcvSummation + payload);
+        cell.hopHistogram.record(hops);
+        if (latencyMicros >= 0)
+            cell.latencyHistogram.record(latencyMicros);
+        endUpdate(cell);
+    }
+
+    public void recordRelayed() {
+        Cell cell = threadCell.get();
+        // a single counter can't be seen half updated, so no need to bump the version
+        RELAY_TRACKER.setOpaque(cell, cell.relayTracker + 1);
+    }
+
+    private static void beginUpdate(Cell cell) {
+        VERSION.setOpaque(cell, cell.version + 1);
+        // the odd version has to be visible before any of the counters change
+        VarHandle.storeStoreFence();
+    }
+
+    private static void endUpdate(Cell cell) {
+        // release so the counters are visible before the even version
+        VERSION.setRelease(cell, cell.version + 1);
+    }
+
+    // Totals since the last reset
+    public synchronized Snapshot snapshot() {
+        return sumCells(false).minus(baseline);
+    }
+
+    /*  Totals since the last reset, and resets the trackers. Both happen at once: an update made while this runs
+        is either in the returned totals or counted towards the next ones, never lost or counted twice.
+        The histograms are read in the same pass as the counters, so they count exactly the packets received  */
+    public synchronized Snapshot snapshotAndReset() {
+        Snapshot totals = sumCells(true);
+        Snapshot sinceReset = totals.minus(baseline);
+        baseline = totals;
+
+        sinceReset.hopHistogram = totals.hopHistogram.minus(hopBaseline);
+        sinceReset.latencyHistogram = totals.latencyHistogram.minus(latencyBaseline);
+        hopBaseline = totals.hopHistogram;
+        latencyBaseline = totals.latencyHistogram;
+        return sinceReset;
+    }
+
+    // withHistograms: also add up the hop and latency histograms, a copy of 2 * NUM_BUCKETS counts per cell
+    private Snapshot sumCells(boolean withHistograms) {
+        Snapshot totals = new Snapshot();
+        // a cell's histograms are copied here first, so a read that has to be retried isn't added to the totals
+        LogHistogram hopHistogram = null;
+        LogHistogram latencyHistogram = null;
+        if (withHistograms) {
+            totals.hopHistogram = new LogHistogram();
+            totals.latencyHistogram = new LogHistogram();
+            hopHistogram = new LogHistogram();
+            latencyHistogram = new LogHistogram();
+        }
+        for (Cell cell : cells) {
+            while (true) {
+                long version = (long) VERSION.getAcquire(cell);
+                if ((version & 1) != 0) {
+                    // owner is mid update
+                    Thread.onSpinWait();
+                    continue;
+                }
+                long sndTracker = (long) SND_TRACKER.getOpaque(cell);
+                long sndSummation = (long) SND_SUMMATION.getOpaque(cell);
+                long rcvTracker = (long) RCV_TRACKER.getOpaque(cell);
+                long rcvSummation = (long) RCV_SUMMATION.getOpaque(cell);
+                long relayTracker = (long) RELAY_TRACKER.getOpaque(cell);
+                if (withHistograms) {
+                    hopHistogram.copyFrom(cell.hopHistogram);
+                    latencyHistogram.copyFrom(cell.latencyHistogram);
+                }
+                // the counters have to be read before checking the version again
+                VarHandle.loadLoadFence();
+                if ((long) VERSION.getOpaque(cell) != version)
+                    continue;
+
+                totals.sndTracker += sndTracker;
+                totals.sndSummation += sndSummation;
+                totals.rcvTracker += rcvTracker;
+                totals.rcvSummation += rcvSummation;
+                totals.relayTracker += relayTracker;
+                if (withHistograms) {
+                    totals.hopHistogram.add(hopHistogram);
+                    totals.latencyHistogram.add(latencyHistogram);
+                }
+                break;
+            }
+        }
+        return totals;
+    }
+}
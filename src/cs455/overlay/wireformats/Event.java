@@ -1,12 +1,24 @@
 package cs455.overlay.wireformats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 // implemented by all msg types
 public interface Event {
     // returns msg type of the Event
     int getType();
 
-    // marshalls the fields of the msg type
-    byte[] getBytes() throws IOException;
+    // exact number of bytes encode() writes
+    int encodedSize();
+
+    /*  marshalls the fields of the msg type into buffer, starting at its position.
+        buffer must have at least encodedSize() bytes remaining  */
+    void encode(ByteBuffer buffer);
+
+    // marshalls the fields of the msg type into a new byte arr
+    default byte[] getBytes() throws IOException {
+        byte[] marshalledBytes = new byte[encodedSize()];
+        encode(ByteBuffer.wrap(marshalledBytes));
+        return marshalledBytes;
+    }
 }
@@ -1,232 +1,353 @@
 package cs455.overlay.wireformats;
 
+import cs455.overlay.routing.Endpoint;
 import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.util.LogHistogram;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class EventFactory implements Protocol {
+    /*  Flyweight mode: data packets, the bulk of the traffic, aren't copied out of the buffer they were read into.
+        processMsg() returns the same OverlayNodeSendsData every time, wrapped around the new msg, and its fields are
+        read from the buffer when they are asked for. Batches of data packets are wrapped the same way.
+        Meant for a receiver that reuses one factory per connection and is done with each msg before it reads the next one  */
+    private boolean flyweight;
+    private OverlayNodeSendsData dataView;
+    private OverlayNodeSendsDataBatch batchView;
+
+    public EventFactory() {
+        this(false);
+    }
+
+    public EventFactory(boolean flyweight) {
+        this.flyweight = flyweight;
+        if (flyweight) {
+            this.dataView = new OverlayNodeSendsData();
+            this.batchView = OverlayNodeSendsDataBatch.view();
+        }
+    }
 
     // registry will use this
-    private Event getNodeRegistration(DataInputStream dIn) throws IOException {
+    private Event getNodeRegistration(ByteBuffer buffer) throws IOException {
         // IP addr
         // use the length of the IP addr to figure out how many bytes to read
-        int IPlength = dIn.readInt();
+        int IPlength = buffer.getInt();
         byte[] IPbytes = new byte[IPlength];
-        dIn.readFully(IPbytes);
+        buffer.get(IPbytes);
         String IP = new String(IPbytes);
 
         // port num
-        int msgNodePort = dIn.readInt();
+        int msgNodePort = buffer.getInt();
 
         return new OverlayNodeSendsRegistration(IP, msgNodePort);
     }
 
     // msgNodes will use this
-    private Event getNodeRegistrationStatus(DataInputStream dIn) throws IOException {
+    private Event getNodeRegistrationStatus(ByteBuffer buffer) throws IOException {
         // node ID assigned by registry; ID > -1 if success, otherwise -1 for failure
-        int ID = dIn.readInt();
+        int ID = buffer.getInt();
 
         // info string
-        int infoStrLength = dIn.readInt();
+        int infoStrLength = buffer.getInt();
         byte[] infoStrBytes = new byte[infoStrLength];
-        dIn.readFully(infoStrBytes);
+        buffer.get(infoStrBytes);
         String infoStr = new String(infoStrBytes);
 
         return new RegistryReportsRegistrationStatus(ID, infoStr);
     }
 
     // registry will use this
-    private Event getNodeDeregistration(DataInputStream dIn) throws IOException {
+    private Event getNodeDeregistration(ByteBuffer buffer) throws IOException {
         // IP addr
-        int IPlength = dIn.readInt();
+        int IPlength = buffer.getInt();
         byte[] IPbytes = new byte[IPlength];
-        dIn.readFully(IPbytes);
+        buffer.get(IPbytes);
         String IP = new String(IPbytes);
 
         // portNum
-        int portNum = dIn.readInt();
+        int portNum = buffer.getInt();
 
         // assigned ID
-        int assignedID = dIn.readInt();
+        int assignedID = buffer.getInt();
 
         return new OverlayNodeSendsDeregistration(IP, portNum, assignedID);
     }
 
     // msgNodes will use this
-    private Event getNodeDeregistrationStatus(DataInputStream dIn) throws IOException {
+    private Event getNodeDeregistrationStatus(ByteBuffer buffer) throws IOException {
         // node ID removed by registry; ID > -1 if success, otherwise -1 for failure
-        int deregisteredID = dIn.readInt();
+        int deregisteredID = buffer.getInt();
 
         // info string
-        int infoStrLength = dIn.readInt();
+        int infoStrLength = buffer.getInt();
         byte[] infoStrBytes = new byte[infoStrLength];
-        dIn.readFully(infoStrBytes);
+        buffer.get(infoStrBytes);
         String infoStr = new String(infoStrBytes);
 
         return new RegistryReportsDeregistrationStatus(deregisteredID, infoStr);
     }
 
     // msgNodes will use this
-    private Event getNodeManifest(DataInputStream dIn) throws IOException {
+    private Event getNodeManifest(ByteBuffer buffer) throws IOException {
         // routing table size
-        int routingTableSize = dIn.readInt();
+        int routingTableSize = buffer.getInt();
 
-        RoutingTable routingTable = new RoutingTable();
+        RoutingTable routingTable = new RoutingTable(routingTableSize);
 
         for (int i = 0; i < routingTableSize; ++i) {
             // ID of node 2^i hops away
-            int ID = dIn.readInt();
+            int ID = buffer.getInt();
 
             // IP of node 2^i hops away
-            int IPlength = dIn.readInt();
+            int IPlength = buffer.getInt();
             byte[] IPbytes = new byte[IPlength];
-            dIn.readFully(IPbytes);
-            String IP = new String(IPbytes);
+            buffer.get(IPbytes);
 
             // portNum of node 2^i hops away
-            int portNum = dIn.readInt();
+            int portNum = buffer.getInt();
 
             // add an entry to routingTable with this info
-            String IPportNumStr = IP + ':' + portNum;
-            routingTable.addRoutingEntry(ID, IPportNumStr);
+            routingTable.addRoutingEntry(ID, new Endpoint(IPbytes, portNum));
+
+            // whether node 2^i hops away connects to this node
+            routingTable.setAwaitsConnection(i, buffer.get() != 0);
         }
 
         // num nodes in the system
-        int numNodes = dIn.readInt();
+        int numNodes = buffer.getInt();
 
         // get each ID of the nodes in the system
         ArrayList<Integer> registeredNodeIDs = new ArrayList<>();
         for (int i = 0; i < numNodes; ++i) {
-            registeredNodeIDs.add(dIn.readInt());
+            registeredNodeIDs.add(buffer.getInt());
         }
 
         return new RegistrySendsNodeManifest(routingTable, numNodes, registeredNodeIDs);
     }
 
-    private Event getOverlaySetupStatus(DataInputStream dIn) throws IOException {
+    private Event getOverlaySetupStatus(ByteBuffer buffer) throws IOException {
         // status; node ID if success, -1 if failure
-        int status = dIn.readInt();
+        int status = buffer.getInt();
 
         // info str
-        int infoStrLength = dIn.readInt();
+        int infoStrLength = buffer.getInt();
         byte[] infoStrBytes = new byte[infoStrLength];
-        dIn.readFully(infoStrBytes);
+        buffer.get(infoStrBytes);
         String infoStr = new String(infoStrBytes);
 
         return new NodeReportsOverlaySetupStatus(status, infoStr);
     }
 
-    private Event getTaskInitiate(DataInputStream dIn) throws IOException {
+    private Event getTaskInitiate(ByteBuffer buffer) throws IOException {
         // number of packets to send
-        int numPacketsToSend = dIn.readInt();
+        int numPacketsToSend = buffer.getInt();
 
-        return new RegistryRequestsTaskInitiate(numPacketsToSend);
+        // target rate, 0 if unpaced
+        int packetsPerSecond = buffer.getInt();
+
+        return new RegistryRequestsTaskInitiate(numPacketsToSend, packetsPerSecond);
     }
 
-    private Event getNodeSendsData(DataInputStream dIn) throws IOException {
+    private Event getNodeSendsData(ByteBuffer buffer, boolean compactTrace, boolean timestamped) throws IOException {
         // dst ID
-        int dstID = dIn.readInt();
+        int dstID = buffer.getInt();
 
         // src ID
-        int srcID = dIn.readInt();
+        int srcID = buffer.getInt();
 
         // payload
-        int payload = dIn.readInt();
+        int payload = buffer.getInt();
+
+        // origin timestamp
+        long originTimestamp = timestamped ? buffer.getLong() : OverlayNodeSendsData.NO_TIMESTAMP;
 
         // routing trace
-        int routingTraceLength = dIn.readInt();
-        ArrayList<Integer> routingTrace = new ArrayList<>();
+        int routingTraceLength = compactTrace ? VarInt.get(buffer) : buffer.getInt();
+        if (routingTraceLength < 0 || routingTraceLength > buffer.remaining())
+            throw new IOException("Routing trace length " + routingTraceLength + " is longer than the msg");
+        int[] routingTrace = new int[routingTraceLength];
         for (int i = 0; i < routingTraceLength; ++i)
-            routingTrace.add(dIn.readInt());
+            routingTrace[i] = compactTrace ? VarInt.get(buffer) : buffer.getInt();
+
+        return new OverlayNodeSendsData(dstID, srcID, payload, routingTrace, compactTrace, originTimestamp);
+    }
 
-        return new OverlayNodeSendsData(dstID, srcID, payload, routingTrace);
+    private Event getNodeSendsDataBatch(ByteBuffer msg, int offset, int length) throws IOException {
+        // the packets stay marshalled and are read as views, so the batch keeps a copy of the msg of its own
+        byte[] batchBytes = new byte[length];
+        msg.get(offset, batchBytes);
+        return OverlayNodeSendsDataBatch.view().wrap(ByteBuffer.wrap(batchBytes), 0, length);
     }
 
     // registry will use this
-    private Event getTaskFinished(DataInputStream dIn) throws IOException {
+    private Event getTaskFinished(ByteBuffer buffer) throws IOException {
         // IP addr
-        int IPlength = dIn.readInt();
+        int IPlength = buffer.getInt();
         byte[] IPbytes = new byte[IPlength];
-        dIn.readFully(IPbytes);
+        buffer.get(IPbytes);
         String IP = new String(IPbytes);
 
         // portNum
-        int portNum = dIn.readInt();
+        int portNum = buffer.getInt();
 
         // nodeID
-        int nodeID = dIn.readInt();
+        int nodeID = buffer.getInt();
 
         return new OverlayNodeReportsTaskFinished(IP, portNum, nodeID);
     }
 
-    private Event getTrafficSummary(DataInputStream dIn) throws IOException {
+    private Event getTrafficSummary(ByteBuffer buffer) throws IOException {
         return new RegistryRequestsTrafficSummary();
     }
 
-    private Event getTrafficSummaryReport(DataInputStream dIn) throws IOException {
+    private Event getTrafficSummaryReport(ByteBuffer buffer) throws IOException {
         // nodeID
-        int nodeID = dIn.readInt();
+        int nodeID = buffer.getInt();
 
         // total num packets sent
-        int totalPacketsSent = dIn.readInt();
+        long totalPacketsSent = buffer.getLong();
 
         // total num packets relayed
-        int totalPacketsRelayed = dIn.readInt();
+        long totalPacketsRelayed = buffer.getLong();
 
         // sum of packet data sent
-        long sendSummation = dIn.readLong();
+        long sendSummation = buffer.getLong();
 
         // total num packets received
-        int totalPacketsRcvd = dIn.readInt();
+        long totalPacketsRcvd = buffer.getLong();
 
         // sum of packet data received
-        long rcvSummation = dIn.readLong();
+        long rcvSummation = buffer.getLong();
 
-        return new OverlayNodeReportsTrafficSummary(nodeID, totalPacketsSent, totalPacketsRelayed, sendSummation, totalPacketsRcvd, rcvSummation);
+        // hop counts and latencies of the packets received
+        LogHistogram hopHistogram = LogHistogram.decode(buffer);
+        LogHistogram latencyHistogram = LogHistogram.decode(buffer);
+
+        return new OverlayNodeReportsTrafficSummary(nodeID, totalPacketsSent, totalPacketsRelayed, sendSummation, totalPacketsRcvd, rcvSummation, hopHistogram, latencyHistogram);
+    }
+
+    private Event getCreditGrant(ByteBuffer buffer) throws IOException {
+        // data packets the receiving end consumed
+        int numCredits = buffer.getInt();
+
+        return new OverlayNodeGrantsCredits(numCredits);
+    }
+
+    private Event getHandshake(ByteBuffer buffer) throws IOException {
+        // ID of the node that opened the connection
+        int ID = buffer.getInt();
+
+        return new OverlayNodeSendsHandshake(ID);
+    }
+
+    private Event getDeliveryCountRequest(ByteBuffer buffer) throws IOException {
+        // probe round
+        int round = buffer.getInt();
+
+        return new RegistryRequestsDeliveryCount(round);
+    }
+
+    private Event getDeliveryCountReport(ByteBuffer buffer) throws IOException {
+        // probe round being answered
+        int round = buffer.getInt();
+
+        // nodeID
+        int nodeID = buffer.getInt();
+
+        // packets sent and received since the last traffic summary
+        long packetsSent = buffer.getLong();
+        long packetsRcvd = buffer.getLong();
+
+        return new OverlayNodeReportsDeliveryCount(round, nodeID, packetsSent, packetsRcvd);
+    }
+
+    private Event getLiveStats(ByteBuffer buffer) throws IOException {
+        // nodeID
+        int nodeID = buffer.getInt();
+
+        // length of the interval the counts cover
+        int intervalMillis = buffer.getInt();
+
+        // packets sent, relayed and received during the interval
+        long packetsSent = buffer.getLong();
+        long packetsRelayed = buffer.getLong();
+        long packetsRcvd = buffer.getLong();
+
+        // sender queue depths
+        int queuedMsgs = buffer.getInt();
+        int maxQueuedMsgs = buffer.getInt();
+
+        return new OverlayNodeReportsLiveStats(nodeID, intervalMillis, packetsSent, packetsRelayed, packetsRcvd, queuedMsgs, maxQueuedMsgs);
     }
 
     // registry will use this
     public Event processMsg(byte[] msg) throws IOException {
-        ByteArrayInputStream baInStream = new ByteArrayInputStream(msg);
-        DataInputStream dIn = new DataInputStream(new BufferedInputStream(baInStream));
-
-        int type = dIn.readInt();   // read msg type to decide what kind of msg to unmarshall
-
-        // TODO: might need breaks after each return since case statements execute all that match?
-        // Don't think so though bc the return should end the execution of this method...
-        switch(type) {
-            case (OVERLAY_NODE_SENDS_REGISTRATION):
-                return getNodeRegistration(dIn);
-            case (REGISTRY_REPORTS_REGISTRATION_STATUS):
-                return getNodeRegistrationStatus(dIn);
-            case (OVERLAY_NODE_SENDS_DEREGISTRATION):
-                return getNodeDeregistration(dIn);
-            case (REGISTRY_REPORTS_DEREGISTRATION_STATUS):
-                return getNodeDeregistrationStatus(dIn);
-            case (REGISTRY_SENDS_NODE_MANIFEST):
-                return getNodeManifest(dIn);
-            case (NODE_REPORTS_OVERLAY_SETUP_STATUS):
-                return getOverlaySetupStatus(dIn);
-            case (REGISTRY_REQUESTS_TASK_INITIATE):
-                return getTaskInitiate(dIn);
-            case (OVERLAY_NODE_SENDS_DATA):
-                return getNodeSendsData(dIn);
-            case (OVERLAY_NODE_REPORTS_TASK_FINISHED):
-                return getTaskFinished(dIn);
-            case (REGISTRY_REQUESTS_TRAFFIC_SUMMARY):
-                return getTrafficSummary(dIn);
-            case (OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY):
-                return getTrafficSummaryReport(dIn);
-        }
+        return processMsg(ByteBuffer.wrap(msg), 0, msg.length);
+    }
 
-        // close the streams
-        baInStream.close();
-        dIn.close();
+    /*  Unmarshalls the msg in buffer[offset, offset + length). Only absolute reads are made on buffer,
+        so its position and limit are left as they were.
+        In flyweight mode a data packet is returned as a view over buffer that is only valid until buffer changes  */
+    public Event processMsg(ByteBuffer msg, int offset, int length) throws IOException {
+        int frameType = msg.getInt(offset);
+        int type = frameType & TYPE_MASK;   // read msg type to decide what kind of msg to unmarshall
+
+        if (type == OVERLAY_NODE_SENDS_DATA && flyweight)
+            return dataView.wrap(msg, offset, length);
+        if (type == OVERLAY_NODE_SENDS_DATA_BATCH)
+            return flyweight ? batchView.wrap(msg, offset, length) : getNodeSendsDataBatch(msg, offset, length);
+
+        // control msgs are rare, decode them from their own buffer positioned after the type
+        ByteBuffer buffer = msg.duplicate();
+        buffer.limit(offset + length);
+        buffer.position(offset + 4);
+
+        try {
+            // TODO: might need breaks after each return since case statements execute all that match?
+            // Don't think so though bc the return should end the execution of this method...
+            switch(type) {
+                case (OVERLAY_NODE_SENDS_REGISTRATION):
+                    return getNodeRegistration(buffer);
+                case (REGISTRY_REPORTS_REGISTRATION_STATUS):
+                    return getNodeRegistrationStatus(buffer);
+                case (OVERLAY_NODE_SENDS_DEREGISTRATION):
+                    return getNodeDeregistration(buffer);
+                case (REGISTRY_REPORTS_DEREGISTRATION_STATUS):
+                    return getNodeDeregistrationStatus(buffer);
+                case (REGISTRY_SENDS_NODE_MANIFEST):
+                    return getNodeManifest(buffer);
+                case (NODE_REPORTS_OVERLAY_SETUP_STATUS):
+                    return getOverlaySetupStatus(buffer);
+                case (REGISTRY_REQUESTS_TASK_INITIATE):
+                    return getTaskInitiate(buffer);
+                case (OVERLAY_NODE_SENDS_DATA):
+                    return getNodeSendsData(buffer, (frameType & COMPACT_TRACE_FLAG) != 0, (frameType & TIMESTAMP_FLAG) != 0);
+                case (OVERLAY_NODE_REPORTS_TASK_FINISHED):
+                    return getTaskFinished(buffer);
+                case (REGISTRY_REQUESTS_TRAFFIC_SUMMARY):
+                    return getTrafficSummary(buffer);
+                case (OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY):
+                    return getTrafficSummaryReport(buffer);
+                case (REGISTRY_REQUESTS_DELIVERY_COUNT):
+                    return getDeliveryCountRequest(buffer);
+                case (OVERLAY_NODE_REPORTS_DELIVERY_COUNT):
+                    return getDeliveryCountReport(buffer);
+                case (OVERLAY_NODE_REPORTS_LIVE_STATS):
+                    return getLiveStats(buffer);
+                case (OVERLAY_NODE_GRANTS_CREDITS):
+                    return getCreditGrant(buffer);
+                case (OVERLAY_NODE_SENDS_HANDSHAKE):
+                    return getHandshake(buffer);
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Msg of type " + type + " is shorter than its fields");
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Msg of type " + type + " is malformed: " + iae.getMessage());
+        }
 
         return null;
     }
@@ -0,0 +1,34 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  A msg that has already been marshalled into a byte arr. Lets the transports queue
+    raw bytes alongside Events; encode() just copies the bytes  */
+public class MarshalledEvent implements Event {
+    private byte[] marshalledBytes;
+
+    public MarshalledEvent(byte[] marshalledBytes) {
+        this.marshalledBytes = marshalledBytes;
+    }
+
+    // msg type is always the low byte of the first int of a marshalled msg, the bytes above it are frame flags
+    @Override
+    public int getType() {
+        return marshalledBytes[3] & Protocol.TYPE_MASK;
+    }
+
+    @Override
+    public int encodedSize() {
+        return marshalledBytes.length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        buffer.put(marshalledBytes);
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return marshalledBytes;
+    }
+}
@@ -1,17 +1,17 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class NodeReportsOverlaySetupStatus implements Protocol, Event {
     private int type = NODE_REPORTS_OVERLAY_SETUP_STATUS;
     private int status;
     private String infoStr;
+    private byte[] infoStrBytes;
 
     public NodeReportsOverlaySetupStatus(int status, String infoStr) {
         this.status = status;
         this.infoStr = infoStr;
+        this.infoStrBytes = infoStr.getBytes();
     }
 
     public int getStatus() {
@@ -28,7 +28,12 @@ public class NodeReportsOverlaySetupStatus implements Protocol, Event {
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + 4 + infoStrBytes.length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
                 byte: msg type (NODE_REPORTS_OVERLAY_SETUP_STATUS)
@@ -36,29 +41,14 @@ public class NodeReportsOverlaySetupStatus implements Protocol, Event {
                 int:  length of following info str field
                 byte: info str
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
         // msg type
-        dOut.writeInt(type);
+        buffer.putInt(type);
 
         // status; ID if success, -1 if failure
-        dOut.writeInt(status);
+        buffer.putInt(status);
 
         // infoStr
-        byte[] infoStrBytes = infoStr.getBytes();
-        int infoStrLength = infoStrBytes.length;
-        dOut.writeInt(infoStrLength);
-        dOut.write(infoStrBytes);
-
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        baOutStream.close();
-        dOut.close();
-
-        return marshalledBytes;
+        buffer.putInt(infoStrBytes.length);
+        buffer.put(infoStrBytes);
     }
 }
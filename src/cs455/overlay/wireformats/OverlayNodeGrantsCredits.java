@@ -0,0 +1,40 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  Flow control on an overlay link: the node on the receiving end of a connection tells the sending end it has
+    consumed numCredits more data packets, so that many more may be sent. Handled by the transport (see LinkCredits),
+    the nodes never see it  */
+public class OverlayNodeGrantsCredits implements Protocol, Event {
+    private int type = OVERLAY_NODE_GRANTS_CREDITS;
+    private int numCredits;
+
+    public OverlayNodeGrantsCredits(int numCredits) {
+        this.numCredits = numCredits;
+    }
+
+    public int getNumCredits() {
+        return numCredits;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*  Msg Outline:
+            int: type
+            int: numCredits
+         */
+        buffer.putInt(type);
+
+        buffer.putInt(numCredits);
+    }
+}
@@ -0,0 +1,66 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  A node's answer to a RegistryRequestsDeliveryCount: how many packets it has sent and received since the last
+    traffic summary. Unlike the traffic summary this doesn't reset the node's trackers  */
+public class OverlayNodeReportsDeliveryCount implements Protocol, Event {
+    private int type = OVERLAY_NODE_REPORTS_DELIVERY_COUNT;
+    private int round;
+    private int ID;
+    private long packetsSent;
+    private long packetsRcvd;
+
+    public OverlayNodeReportsDeliveryCount(int round, int ID, long packetsSent, long packetsRcvd) {
+        this.round = round;
+        this.ID = ID;
+        this.packetsSent = packetsSent;
+        this.packetsRcvd = packetsRcvd;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getID() {
+        return ID;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getPacketsRcvd() {
+        return packetsRcvd;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return 4 + 4 + 4 + 8 + 8;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*  Msg Outline:
+            int: type
+            int: probe round being answered
+            int: ID
+            long: packetsSent
+            long: packetsRcvd
+         */
+        buffer.putInt(type);
+
+        buffer.putInt(round);
+
+        buffer.putInt(ID);
+
+        buffer.putLong(packetsSent);
+
+        buffer.putLong(packetsRcvd);
+    }
+}
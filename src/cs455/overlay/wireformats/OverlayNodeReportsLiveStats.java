@@ -0,0 +1,97 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  Sent by a msging node to the registry every stats interval while it takes part in a run: the packets it sent,
+    relayed and received during the interval, and how many msgs are waiting in the sender queues of the connections
+    to its routing table. Small on purpose, so a run can be watched without slowing it down  */
+public class OverlayNodeReportsLiveStats implements Protocol, Event {
+    private int type = OVERLAY_NODE_REPORTS_LIVE_STATS;
+    private int ID;
+    private int intervalMillis;
+    private long packetsSent;
+    private long packetsRelayed;
+    private long packetsRcvd;
+    private int queuedMsgs;
+    private int maxQueuedMsgs;
+
+    public OverlayNodeReportsLiveStats(int ID, int intervalMillis, long packetsSent, long packetsRelayed, long packetsRcvd, int queuedMsgs, int maxQueuedMsgs) {
+        this.ID = ID;
+        this.intervalMillis = intervalMillis;
+        this.packetsSent = packetsSent;
+        this.packetsRelayed = packetsRelayed;
+        this.packetsRcvd = packetsRcvd;
+        this.queuedMsgs = queuedMsgs;
+        this.maxQueuedMsgs = maxQueuedMsgs;
+    }
+
+    public int getID() {
+        return ID;
+    }
+
+    // how long the interval the counts cover actually was
+    public int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getPacketsRelayed() {
+        return packetsRelayed;
+    }
+
+    public long getPacketsRcvd() {
+        return packetsRcvd;
+    }
+
+    // msgs queued on all of the node's routing table connections
+    public int getQueuedMsgs() {
+        return queuedMsgs;
+    }
+
+    // msgs queued on the node's fullest routing table connection
+    public int getMaxQueuedMsgs() {
+        return maxQueuedMsgs;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return 4 + 4 + 4 + 8 + 8 + 8 + 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*  Msg Outline:
+            int: type
+            int: ID
+            int: intervalMillis
+            long: packetsSent during the interval
+            long: packetsRelayed during the interval
+            long: packetsRcvd during the interval
+            int: queuedMsgs
+            int: maxQueuedMsgs
+         */
+        buffer.putInt(type);
+
+        buffer.putInt(ID);
+
+        buffer.putInt(intervalMillis);
+
+        buffer.putLong(packetsSent);
+
+        buffer.putLong(packetsRelayed);
+
+        buffer.putLong(packetsRcvd);
+
+        buffer.putInt(queuedMsgs);
+
+        buffer.putInt(maxQueuedMsgs);
+    }
+}
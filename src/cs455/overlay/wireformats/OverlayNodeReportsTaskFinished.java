@@ -1,19 +1,19 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OverlayNodeReportsTaskFinished implements Protocol, Event {
     private int type = OVERLAY_NODE_REPORTS_TASK_FINISHED;
     private String IP;
     private int portNum;
     private int nodeID;
+    private byte[] IPbytes;
 
     public OverlayNodeReportsTaskFinished(String IP, int portNum, int nodeID) {
         this.IP = IP;
         this.portNum = portNum;
         this.nodeID = nodeID;
+        this.IPbytes = IP.getBytes();
     }
 
     @Override
@@ -34,35 +34,25 @@ public class OverlayNodeReportsTaskFinished implements Protocol, Event {
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + IPbytes.length + 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*  Msg outline:
             int:    OVERLAY_NODE_REPORTS_TASK_FINISHED
             int:    length of following IP field
             byte[]: IP addr
             int:    portNum
             int:    nodeID  */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
-        dOut.writeInt(type);
-
-        byte[] IPbytes = IP.getBytes();
-        int IPlength = IPbytes.length;
-        dOut.writeInt(IPlength);
-        dOut.write(IPbytes);
-
-        dOut.writeInt(portNum);
-
-        dOut.writeInt(nodeID);
+        buffer.putInt(type);
 
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
+        buffer.putInt(IPbytes.length);
+        buffer.put(IPbytes);
 
-        baOutStream.close();
-        dOut.close();
+        buffer.putInt(portNum);
 
-        return marshalledBytes;
+        buffer.putInt(nodeID);
     }
 }
@@ -1,27 +1,30 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import cs455.overlay.util.LogHistogram;
+
+import java.nio.ByteBuffer;
 
 public class OverlayNodeReportsTrafficSummary implements Protocol, Event {
     private int type = OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY;
     private int ID;
-    private int totalPacketsSent;
-    private int totalPacketsRelayed;
+    private long totalPacketsSent;
+    private long totalPacketsRelayed;
     private long sendSummation;
-    private int totalPacketsRcvd;
+    private long totalPacketsRcvd;
     private long rcvSummation;
+    // hops (relays + 1) and latencies in microseconds of the packets received, latencies only if they had a timestamp
+    private LogHistogram hopHistogram;
+    private LogHistogram latencyHistogram;
 
     public int getID() {
         return ID;
     }
 
-    public int getTotalPacketsSent() {
+    public long getTotalPacketsSent() {
         return totalPacketsSent;
     }
 
-    public int getTotalPacketsRelayed() {
+    public long getTotalPacketsRelayed() {
         return totalPacketsRelayed;
     }
 
@@ -29,7 +32,7 @@ public class OverlayNodeReportsTrafficSummary implements Protocol, Event {
         return sendSummation;
     }
 
-    public int getTotalPacketsRcvd() {
+    public long getTotalPacketsRcvd() {
         return totalPacketsRcvd;
     }
 
@@ -37,13 +40,29 @@ public class OverlayNodeReportsTrafficSummary implements Protocol, Event {
         return rcvSummation;
     }
 
-    public OverlayNodeReportsTrafficSummary(int ID, int totalPacketsSent, int totalPacketsRelayed, long sendSummation, int totalPacketsRcvd, long rcvSummation) {
+    public LogHistogram getHopHistogram() {
+        return hopHistogram;
+    }
+
+    public LogHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    // Summary without histograms
+    public OverlayNodeReportsTrafficSummary(int ID, long totalPacketsSent, long totalPacketsRelayed, long sendSummation, long totalPacketsRcvd, long rcvSummation) {
+        this(ID, totalPacketsSent, totalPacketsRelayed, sendSummation, totalPacketsRcvd, rcvSummation, new LogHistogram(), new LogHistogram());
+    }
+
+    public OverlayNodeReportsTrafficSummary(int ID, long totalPacketsSent, long totalPacketsRelayed, long sendSummation, long totalPacketsRcvd, long rcvSummation,
+                                            LogHistogram hopHistogram, LogHistogram latencyHistogram) {
         this.ID = ID;
         this.totalPacketsSent = totalPacketsSent;
         this.totalPacketsRelayed = totalPacketsRelayed;
         this.sendSummation = sendSummation;
         this.totalPacketsRcvd = totalPacketsRcvd;
         this.rcvSummation = rcvSummation;
+        this.hopHistogram = hopHistogram;
+        this.latencyHistogram = latencyHistogram;
     }
 
     @Override
@@ -52,41 +71,39 @@ public class OverlayNodeReportsTrafficSummary implements Protocol, Event {
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + 8 + 8 + 8 + 8 + 8 + hopHistogram.encodedSize() + latencyHistogram.encodedSize();
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*  Msg Outline:
             int: type
             int: ID
-            int: totalPacketsSent
-            int: totalPacketsRelayed
+            long: totalPacketsSent
+            long: totalPacketsRelayed
             long: sendSummation
-            int: totalPacketsRcvd
+            long: totalPacketsRcvd
             long: rcvSummation
+            histogram: hopHistogram (see LogHistogram.encode)
+            histogram: latencyHistogram
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
-        dOut.writeInt(type);
-
-        dOut.writeInt(ID);
+        buffer.putInt(type);
 
-        dOut.writeInt(totalPacketsSent);
+        buffer.putInt(ID);
 
-        dOut.writeInt(totalPacketsRelayed);
+        buffer.putLong(totalPacketsSent);
 
-        dOut.writeLong(sendSummation);
+        buffer.putLong(totalPacketsRelayed);
 
-        dOut.writeInt(totalPacketsRcvd);
+        buffer.putLong(sendSummation);
 
-        dOut.writeLong(rcvSummation);
+        buffer.putLong(totalPacketsRcvd);
 
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
+        buffer.putLong(rcvSummation);
 
-        baOutStream.close();
-        dOut.close();
+        hopHistogram.encode(buffer);
 
-        return marshalledBytes;
+        latencyHistogram.encode(buffer);
     }
 }
@@ -1,39 +1,260 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 
 public class OverlayNodeSendsData implements Protocol, Event {
+    /*  Encoding of the routing trace in the msgs this node sends, -Dcs455.overlay.data.traceEncoding=compact|fixed.
+            compact: trace length and IDs are varints (1 byte each while IDs are < 128), marked by COMPACT_TRACE_FLAG
+            fixed:   trace length and IDs are 4 byte ints
+        Either encoding is accepted when receiving, and a relayed msg keeps the encoding it arrived in  */
+    public static final boolean COMPACT_TRACE = !"fixed".equalsIgnoreCase(System.getProperty("cs455.overlay.data.traceEncoding", "compact"));
+
+    /*  Whether the msgs this node sends carry the time they were sent, -Dcs455.overlay.data.timestamps=true, so the
+        sinks can record their end to end latency. Off by default, it makes every packet 8 bytes longer.
+        Packets with and without a timestamp (TIMESTAMP_FLAG) are accepted either way  */
+    public static final boolean TIMESTAMPS = Boolean.getBoolean("cs455.overlay.data.timestamps");
+
+    // originTimestamp of a msg that doesn't carry one
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /*  nanoTime() is cheaper than the wall clock but only means something inside one JVM, so the wall clock is read
+        once and timestamps are nanoTime() shifted onto it. Latencies between nodes on different machines are only as
+        good as their clocks agree  */
+    private static final long EPOCH_OFFSET_MICROS = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now()) - System.nanoTime() / 1000;
+
+    // trace of a msg no node has relayed yet
+    public static final int[] EMPTY_ROUTING_TRACE = new int[0];
+
+    // offsets of the fields in a marshalled msg
+    static final int DST_ID_OFFSET = 4;
+    static final int SRC_ID_OFFSET = 8;
+    static final int PAYLOAD_OFFSET = 12;
+    // timestamped msgs only, it pushes the routing trace back 8 bytes
+    static final int TIMESTAMP_OFFSET = 16;
+    static final int ROUTING_TRACE_LENGTH_OFFSET = 16;
+
     private int type = OVERLAY_NODE_SENDS_DATA;
     private int dstID;
     private int srcID;
     private int payload;
     // includes the nodes (except the src and sink) that routed this packet
-    private ArrayList<Integer> routingTrace;
+    private int[] routingTrace;
+    private boolean compactTrace;
+    // microseconds since the epoch when the src sent this packet, or NO_TIMESTAMP
+    private long originTimestamp;
+
+    /*  Set when this is a flyweight view over a received msg (see EventFactory). The fields above are unused
+        and every getter reads from view instead, so decoding a packet doesn't allocate anything.
+        A view is only valid until its EventFactory wraps the next msg  */
+    private ByteBuffer view;
+    private int viewOffset;
+    private int viewLength;
+    private boolean viewCompactTrace;
+    private boolean viewTimestamped;
 
-    public OverlayNodeSendsData(int dstID, int srcID, int payload, ArrayList<Integer> routingTrace) {
+    public OverlayNodeSendsData(int dstID, int srcID, int payload, int[] routingTrace) {
+        this(dstID, srcID, payload, routingTrace, COMPACT_TRACE);
+    }
+
+    public OverlayNodeSendsData(int dstID, int srcID, int payload, int[] routingTrace, boolean compactTrace) {
+        this(dstID, srcID, payload, routingTrace, compactTrace, NO_TIMESTAMP);
+    }
+
+    public OverlayNodeSendsData(int dstID, int srcID, int payload, int[] routingTrace, boolean compactTrace, long originTimestamp) {
         this.dstID = dstID;
         this.srcID = srcID;
         this.payload = payload;
         this.routingTrace = routingTrace;
+        this.compactTrace = compactTrace;
+        this.originTimestamp = originTimestamp;
+    }
+
+    // Current time in microseconds since the epoch, for the originTimestamp of a msg
+    public static long timestampMicros() {
+        return timestampMicros(System.nanoTime());
+    }
+
+    // A System.nanoTime() in microseconds since the epoch, e.g. the time a paced packet was due to be sent
+    public static long timestampMicros(long nanoTime) {
+        return nanoTime / 1000 + EPOCH_OFFSET_MICROS;
+    }
+
+    // flyweight, see wrap()
+    OverlayNodeSendsData() {
+    }
+
+    // Points this flyweight at the marshalled msg in buffer[offset, offset + length)
+    OverlayNodeSendsData wrap(ByteBuffer buffer, int offset, int length) {
+        this.view = buffer;
+        this.viewOffset = offset;
+        this.viewLength = length;
+        int frameType = buffer.getInt(offset);
+        this.viewCompactTrace = (frameType & COMPACT_TRACE_FLAG) != 0;
+        this.viewTimestamped = (frameType & TIMESTAMP_FLAG) != 0;
+        return this;
+    }
+
+    // Where the routing trace length is in a view, after the timestamp if it has one
+    private int routingTraceLengthOffset() {
+        return viewTimestamped ? ROUTING_TRACE_LENGTH_OFFSET + 8 : ROUTING_TRACE_LENGTH_OFFSET;
+    }
+
+    public boolean isView() {
+        return view != null;
+    }
+
+    public boolean hasCompactTrace() {
+        if (view != null)
+            return viewCompactTrace;
+        return compactTrace;
     }
 
     public int getDstID() {
+        if (view != null)
+            return view.getInt(viewOffset + DST_ID_OFFSET);
         return dstID;
     }
 
     public int getSrcID() {
+        if (view != null)
+            return view.getInt(viewOffset + SRC_ID_OFFSET);
         return srcID;
     }
 
     public int getPayload() {
+        if (view != null)
+            return view.getInt(viewOffset + PAYLOAD_OFFSET);
         return payload;
     }
 
-    public ArrayList<Integer> getRoutingTrace() {
-        return routingTrace;
+    public boolean hasTimestamp() {
+        if (view != null)
+            return viewTimestamped;
+        return originTimestamp != NO_TIMESTAMP;
+    }
+
+    // Microseconds since the epoch when the src sent this packet, NO_TIMESTAMP if it didn't say
+    public long getOriginTimestamp() {
+        if (view != null)
+            return viewTimestamped ? view.getLong(viewOffset + TIMESTAMP_OFFSET) : NO_TIMESTAMP;
+        return originTimestamp;
+    }
+
+    public int getRoutingTraceLength() {
+        if (view == null)
+            return routingTrace.length;
+        if (viewCompactTrace)
+            return VarInt.get(view, viewOffset + routingTraceLengthOffset());
+        return view.getInt(viewOffset + routingTraceLengthOffset());
+    }
+
+    /*  ID of the i-th node that relayed this packet. For a view with a compact trace this decodes
+        the trace up to entry i, so use getRoutingTrace() to go through the whole trace  */
+    public int getRoutingTraceEntry(int i) {
+        if (view == null)
+            return routingTrace[i];
+        // in the fixed encoding the trace starts right after the 4 byte length
+        if (!viewCompactTrace)
+            return view.getInt(viewOffset + routingTraceLengthOffset() + 4 + 4 * i);
+
+        int index = viewOffset + routingTraceLengthOffset();
+        index += VarInt.size(VarInt.get(view, index));
+        for (int entry = 0; entry < i; ++entry)
+            index += VarInt.size(VarInt.get(view, index));
+        return VarInt.get(view, index);
+    }
+
+    // For a view this decodes the trace into a new array; don't modify the array of a msg that isn't a view
+    public int[] getRoutingTrace() {
+        if (view == null)
+            return routingTrace;
+        int routingTraceLength = getRoutingTraceLength();
+        int[] trace = new int[routingTraceLength];
+        if (!viewCompactTrace) {
+            int traceOffset = viewOffset + routingTraceLengthOffset() + 4;
+            for (int i = 0; i < routingTraceLength; ++i)
+                trace[i] = view.getInt(traceOffset + 4 * i);
+            return trace;
+        }
+        int index = viewOffset + routingTraceLengthOffset() + VarInt.size(routingTraceLength);
+        for (int i = 0; i < routingTraceLength; ++i) {
+            trace[i] = VarInt.get(view, index);
+            index += VarInt.size(trace[i]);
+        }
+        return trace;
+    }
+
+    /*  Relay fast path: the marshalled msg with relayID appended to its routing trace, ready to forward to the next hop.
+        A view isn't decoded; its bytes (timestamp included) are copied as is, except the routing trace length which
+        goes up by one  */
+    public byte[] relayedBy(int relayID) {
+        if (view == null) {
+            int[] relayedTrace = Arrays.copyOf(routingTrace, routingTrace.length + 1);
+            relayedTrace[routingTrace.length] = relayID;
+            OverlayNodeSendsData relayed = new OverlayNodeSendsData(dstID, srcID, payload, relayedTrace, compactTrace, originTimestamp);
+            byte[] relayedBytes = new byte[relayed.encodedSize()];
+            relayed.encode(ByteBuffer.wrap(relayedBytes));
+            return relayedBytes;
+        }
+
+        int lengthOffset = routingTraceLengthOffset();
+        if (!viewCompactTrace) {
+            byte[] relayedBytes = new byte[viewLength + 4];
+            view.get(viewOffset, relayedBytes, 0, viewLength);
+            ByteBuffer relayed = ByteBuffer.wrap(relayedBytes);
+            relayed.putInt(lengthOffset, relayed.getInt(lengthOffset) + 1);
+            relayed.putInt(viewLength, relayID);
+            return relayedBytes;
+        }
+
+        // the varint length can take one more byte once it goes up by one, so the trace entries are copied after it
+        int routingTraceLength = getRoutingTraceLength();
+        int oldLengthSize = VarInt.size(routingTraceLength);
+        int newLengthSize = VarInt.size(routingTraceLength + 1);
+        int traceOffset = lengthOffset + oldLengthSize;
+        int traceBytes = viewLength - traceOffset;
+
+        byte[] relayedBytes = new byte[viewLength + newLengthSize - oldLengthSize + VarInt.size(relayID)];
+        view.get(viewOffset, relayedBytes, 0, lengthOffset);
+        int index = VarInt.put(relayedBytes, lengthOffset, routingTraceLength + 1);
+        view.get(viewOffset + traceOffset, relayedBytes, index, traceBytes);
+        VarInt.put(relayedBytes, index + traceBytes, relayID);
+        return relayedBytes;
+    }
+
+    /*  Same as relayedBy(relayID), but marshalls the relayed msg into buffer at its position instead of a new arr,
+        so a relay filling a batch (see OverlayNodeSendsDataBatch) copies each packet once. buffer must be a heap
+        buffer with room for encodedSize() + 1 + VarInt.MAX_SIZE bytes  */
+    public void relayedBy(int relayID, ByteBuffer buffer) {
+        if (view == null) {
+            buffer.put(relayedBy(relayID));
+            return;
+        }
+
+        // batches are heap buffers, so the bytes are copied straight into the arr like relayedBy(relayID) does
+        byte[] relayedBytes = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int lengthOffset = routingTraceLengthOffset();
+        if (!viewCompactTrace) {
+            view.get(viewOffset, relayedBytes, start, viewLength);
+            int relayedLength = buffer.position();
+            buffer.putInt(relayedLength + lengthOffset, buffer.getInt(relayedLength + lengthOffset) + 1);
+            buffer.putInt(relayedLength + viewLength, relayID);
+            buffer.position(relayedLength + viewLength + 4);
+            return;
+        }
+
+        int routingTraceLength = getRoutingTraceLength();
+        int traceOffset = lengthOffset + VarInt.size(routingTraceLength);
+        int traceBytes = viewLength - traceOffset;
+        view.get(viewOffset, relayedBytes, start, lengthOffset);
+        int index = VarInt.put(relayedBytes, start + lengthOffset, routingTraceLength + 1);
+        view.get(viewOffset + traceOffset, relayedBytes, index, traceBytes);
+        index = VarInt.put(relayedBytes, index + traceBytes, relayID);
+        buffer.position(index - buffer.arrayOffset());
     }
 
     @Override
@@ -42,44 +263,69 @@ public class OverlayNodeSendsData implements Protocol, Event {
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        if (view != null)
+            return viewLength;
+        int timestampSize = originTimestamp != NO_TIMESTAMP ? 8 : 0;
+        if (!compactTrace)
+            return 4 + 4 + 4 + 4 + timestampSize + 4 + 4 * routingTrace.length;
+        int size = 4 + 4 + 4 + 4 + timestampSize + VarInt.size(routingTrace.length);
+        for (int ID : routingTrace)
+            size += VarInt.size(ID);
+        return size;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
-            byte: msg type (OVERLAY_NODE_SENDS_DATA)
+            int: msg type (OVERLAY_NODE_SENDS_DATA), | COMPACT_TRACE_FLAG if the trace is compact,
+                 | TIMESTAMP_FLAG if it has an origin timestamp
             int:  dst ID
             int:  src ID
             int:  payload
-            int:  length of following routing trace field
-            int[]: routing trace
+            long: origin timestamp (only with TIMESTAMP_FLAG)
+            int:  length of following routing trace field (varint if compact)
+            int[]: routing trace (varint[] if compact)
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
+        if (view != null) {
+            // already marshalled, copy it as is
+            buffer.put(buffer.position(), view, viewOffset, viewLength);
+            buffer.position(buffer.position() + viewLength);
+            return;
+        }
 
         // msg type
-        dOut.writeInt(type);
+        boolean timestamped = originTimestamp != NO_TIMESTAMP;
+        int frameType = type;
+        if (compactTrace)
+            frameType |= COMPACT_TRACE_FLAG;
+        if (timestamped)
+            frameType |= TIMESTAMP_FLAG;
+        buffer.putInt(frameType);
 
         // dst ID
-        dOut.writeInt(dstID);
+        buffer.putInt(dstID);
 
         // src ID
-        dOut.writeInt(srcID);
+        buffer.putInt(srcID);
 
         // payload
-        dOut.writeInt(payload);
-
-        // routing trace
-        dOut.writeInt(routingTrace.size());
-        for (Integer trace : routingTrace)
-            dOut.writeInt(trace);
-
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
+        buffer.putInt(payload);
 
-        baOutStream.close();
-        dOut.flush();
+        // origin timestamp
+        if (timestamped)
+            buffer.putLong(originTimestamp);
 
-        return marshalledBytes;
+        // routing trace
+        if (compactTrace) {
+            VarInt.put(buffer, routingTrace.length);
+            for (int ID : routingTrace)
+                VarInt.put(buffer, ID);
+        } else {
+            buffer.putInt(routingTrace.length);
+            for (int ID : routingTrace)
+                buffer.putInt(ID);
+        }
     }
 }
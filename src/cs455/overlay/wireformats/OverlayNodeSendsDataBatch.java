@@ -0,0 +1,154 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*  Many data packets going to the same next hop in one msg. Each packet is an OverlayNodeSendsData marshalled as is
+    (flags, timestamp and routing trace included) behind a 4 byte length, so a relay can copy packets from a batch it
+    received into the batches it sends without decoding them. The length prefix, the type and the onEvent() dispatch
+    are paid once per batch instead of once per packet.
+    Srcs and relays fill one batch per next hop (see NextHopBatches) and the receiving node unpacks it with
+    nextPacket() in a loop. Every packet in a batch takes a flow control credit (see LinkCredits).
+    -Dcs455.overlay.data.batchSize: packets per batch (default 32, 1 turns batching off and sends every packet in a msg
+    of its own). Batches are accepted either way  */
+public class OverlayNodeSendsDataBatch implements Protocol, Event {
+    public static final int MAX_PACKETS = Math.max(1, Integer.getInteger("cs455.overlay.data.batchSize", 32));
+
+    // offsets of the fields in a marshalled msg
+    static final int NUM_PACKETS_OFFSET = 4;
+    static final int PACKETS_OFFSET = 8;
+    // room for MAX_PACKETS packets with a short trace before the buffer of a new batch has to grow
+    private static final int INITIAL_PACKET_SIZE = 32;
+
+    private int type = OVERLAY_NODE_SENDS_DATA_BATCH;
+
+    /*  The marshalled msg is in frame[frameOffset, frameOffset + frameLength). A batch being filled owns frame and
+        appends to it. A flyweight view over a received msg (see EventFactory) points frame at the receiver's buffer,
+        and is only valid until its EventFactory wraps the next msg  */
+    private ByteBuffer frame;
+    private int frameOffset;
+    private int frameLength;
+    private int numPackets;
+
+    // reading the packets of a view back: the view nextPacket() returns, and where the packet after it starts
+    private OverlayNodeSendsData packetView;
+    private int nextPacketOffset;
+    private int packetsLeft;
+
+    // An empty batch to add() packets to
+    public OverlayNodeSendsDataBatch() {
+        this.frame = ByteBuffer.allocate(PACKETS_OFFSET + MAX_PACKETS * (4 + INITIAL_PACKET_SIZE));
+        frame.putInt(type);
+        frame.putInt(0);
+        this.frameLength = PACKETS_OFFSET;
+    }
+
+    private OverlayNodeSendsDataBatch(OverlayNodeSendsData packetView) {
+        this.packetView = packetView;
+    }
+
+    // flyweight, see wrap()
+    static OverlayNodeSendsDataBatch view() {
+        return new OverlayNodeSendsDataBatch(new OverlayNodeSendsData());
+    }
+
+    /*  Points this flyweight at the marshalled msg in buffer[offset, offset + length) and rewinds nextPacket().
+        The packets are checked as nextPacket() gets to them  */
+    OverlayNodeSendsDataBatch wrap(ByteBuffer buffer, int offset, int length) throws IOException {
+        if (length < PACKETS_OFFSET)
+            throw new IOException("Msg of type " + type + " is shorter than its fields");
+        this.frame = buffer;
+        this.frameOffset = offset;
+        this.frameLength = length;
+        this.numPackets = buffer.getInt(offset + NUM_PACKETS_OFFSET);
+        if (numPackets < 0)
+            throw new IOException("Batch has " + numPackets + " packets");
+        this.nextPacketOffset = offset + PACKETS_OFFSET;
+        this.packetsLeft = numPackets;
+        return this;
+    }
+
+    public int getNumPackets() {
+        return numPackets;
+    }
+
+    // Makes sure size more bytes fit after the packets added so far
+    private void ensureCapacity(int size) {
+        if (frame.remaining() >= size)
+            return;
+        ByteBuffer largerFrame = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frameLength + size));
+        frame.flip();
+        largerFrame.put(frame);
+        frame = largerFrame;
+    }
+
+    // Appends a packet this node sends. Only on a batch made with the no arg constructor, before it is sent
+    public void add(OverlayNodeSendsData packet) {
+        int packetSize = packet.encodedSize();
+        ensureCapacity(4 + packetSize);
+        frame.putInt(packetSize);
+        packet.encode(frame);
+        addedPacket();
+    }
+
+    // Appends packet with relayID added to its routing trace (see OverlayNodeSendsData.relayedBy())
+    public void addRelayed(OverlayNodeSendsData packet, int relayID) {
+        // the relayed packet is at most a longer trace length and the relay's ID longer, so its length is filled in after
+        ensureCapacity(4 + packet.encodedSize() + 1 + VarInt.MAX_SIZE);
+        int lengthPosition = frame.position();
+        frame.position(lengthPosition + 4);
+        packet.relayedBy(relayID, frame);
+        frame.putInt(lengthPosition, frame.position() - lengthPosition - 4);
+        addedPacket();
+    }
+
+    private void addedPacket() {
+        ++numPackets;
+        frame.putInt(NUM_PACKETS_OFFSET, numPackets);
+        frameLength = frame.position();
+    }
+
+    /*  The next packet of a received batch, or null once they have all been read. The packet is a flyweight view
+        that is only valid until the next call  */
+    public OverlayNodeSendsData nextPacket() throws IOException {
+        if (packetsLeft == 0 || packetView == null)
+            return null;
+        int frameEnd = frameOffset + frameLength;
+        if (frameEnd - nextPacketOffset < 4)
+            throw new IOException("Batch is shorter than its " + numPackets + " packets");
+        int packetLength = frame.getInt(nextPacketOffset);
+        int packetOffset = nextPacketOffset + 4;
+        if (packetLength < OverlayNodeSendsData.ROUTING_TRACE_LENGTH_OFFSET + 1 || packetLength > frameEnd - packetOffset)
+            throw new IOException("Batched packet of " + packetLength + " bytes doesn't fit in the batch");
+        if ((frame.getInt(packetOffset) & TYPE_MASK) != OVERLAY_NODE_SENDS_DATA)
+            throw new IOException("Batched msg of type " + (frame.getInt(packetOffset) & TYPE_MASK) + " isn't a data packet");
+
+        nextPacketOffset = packetOffset + packetLength;
+        --packetsLeft;
+        return packetView.wrap(frame, packetOffset, packetLength);
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return frameLength;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*  Msg Outline:
+            int: type
+            int: number of packets that follow
+            for each packet:
+                int:    length of the packet
+                byte[]: the packet, a marshalled OVERLAY_NODE_SENDS_DATA
+         */
+        // already marshalled as the packets were added, copy it as is
+        buffer.put(buffer.position(), frame, frameOffset, frameLength);
+        buffer.position(buffer.position() + frameLength);
+    }
+}
@@ -0,0 +1,40 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  First msg a node sends on a connection it opens to a node in its routing table, so the node that accepted it knows
+    which node is on the other end. A node that waits for a routing table entry to connect to it (see
+    RoutingTable.awaitsConnection()) uses the connection the handshake came on for that entry, both ways  */
+public class OverlayNodeSendsHandshake implements Protocol, Event {
+    private int type = OVERLAY_NODE_SENDS_HANDSHAKE;
+    private int ID;
+
+    public OverlayNodeSendsHandshake(int ID) {
+        this.ID = ID;
+    }
+
+    public int getID() {
+        return ID;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*  Msg Outline:
+            int: type
+            int: ID
+         */
+        buffer.putInt(type);
+
+        buffer.putInt(ID);
+    }
+}
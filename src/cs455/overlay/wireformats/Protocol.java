@@ -12,4 +12,18 @@ public interface Protocol {
     final int OVERLAY_NODE_REPORTS_TASK_FINISHED = 10;
     final int REGISTRY_REQUESTS_TRAFFIC_SUMMARY = 11;
     final int OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY = 12;
+    final int REGISTRY_REQUESTS_DELIVERY_COUNT = 13;
+    final int OVERLAY_NODE_REPORTS_DELIVERY_COUNT = 14;
+    final int OVERLAY_NODE_REPORTS_LIVE_STATS = 15;
+    final int OVERLAY_NODE_GRANTS_CREDITS = 16;
+    final int OVERLAY_NODE_SENDS_DATA_BATCH = 17;
+    final int OVERLAY_NODE_SENDS_HANDSHAKE = 18;
+
+    /*  The first int of a msg is its type in the low byte, plus flags for versions of the frame format above it.
+        A receiver masks the flags off to get the type  */
+    final int TYPE_MASK = 0xFF;
+    // OVERLAY_NODE_SENDS_DATA whose routing trace is encoded as varints
+    final int COMPACT_TRACE_FLAG = 0x100;
+    // OVERLAY_NODE_SENDS_DATA with the time the src sent it after the payload
+    final int TIMESTAMP_FLAG = 0x200;
 }
@@ -1,17 +1,17 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryReportsDeregistrationStatus implements Protocol, Event {
     private int type = REGISTRY_REPORTS_DEREGISTRATION_STATUS;
     private int deregisteredID;
     private String infoStr;
+    private byte[] infoStrBytes;
 
     public RegistryReportsDeregistrationStatus(int deregisteredID, String infoStr) {
         this.deregisteredID = deregisteredID;
         this.infoStr = infoStr;
+        this.infoStrBytes = infoStr.getBytes();
     }
 
     public int getDeregisteredID() {
@@ -27,9 +27,14 @@ public class RegistryReportsDeregistrationStatus implements Protocol, Event {
         return type;
     }
 
-    // marshall this msg into a byte arr
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + 4 + infoStrBytes.length;
+    }
+
+    // marshall this msg into the buffer
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
                 byte: msg type (REGISTRY_REPORTS_DEREGISTRATION_STATUS)
@@ -37,31 +42,14 @@ public class RegistryReportsDeregistrationStatus implements Protocol, Event {
                 byte: length of following info str field
                 byte: info str
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
         // REGISTRY_REPORTS_DEREGISTRATION_STATUS
-        dOut.writeInt(type);
+        buffer.putInt(type);
 
         // success status
-        dOut.writeInt(deregisteredID);
+        buffer.putInt(deregisteredID);
 
         // len of info str
-        byte[] infoStrBytes = infoStr.getBytes();
-        int infoStrLength = infoStrBytes.length;
-        dOut.writeInt(infoStrLength);
-        dOut.write(infoStrBytes);
-
-        // write buffer to the stream
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        // close streams
-        baOutStream.close();
-        dOut.close();
-
-        return marshalledBytes;
+        buffer.putInt(infoStrBytes.length);
+        buffer.put(infoStrBytes);
     }
 }
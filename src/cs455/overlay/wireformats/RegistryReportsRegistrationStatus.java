@@ -1,20 +1,17 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-
-import cs455.overlay.node.Registry;
+import java.nio.ByteBuffer;
 
 public class RegistryReportsRegistrationStatus implements Protocol, Event {
     private int type = REGISTRY_REPORTS_REGISTRATION_STATUS;
     private int ID;
     private String infoStr;
+    private byte[] infoStrBytes;
 
     public RegistryReportsRegistrationStatus(int ID, String infoStr) {
         this.ID = ID;
         this.infoStr = infoStr;
+        this.infoStrBytes = infoStr.getBytes();
     }
 
     public int getID() { return ID; }
@@ -26,9 +23,14 @@ public class RegistryReportsRegistrationStatus implements Protocol, Event {
         return type;
     }
 
-    // marshall this msg into a byte arr
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + 4 + infoStrBytes.length;
+    }
+
+    // marshall this msg into the buffer
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
                 byte: msg type (REGISTRY_REPORTS_REGISTRATION_STATUS)
@@ -36,31 +38,14 @@ public class RegistryReportsRegistrationStatus implements Protocol, Event {
                 byte: length of following infoStr field
                 byte: info string
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(baOutStream));
-
         // msg type
-        dOut.writeInt(type);
+        buffer.putInt(type);
 
         // success status
-        dOut.writeInt(ID);
+        buffer.putInt(ID);
 
         // info string
-        byte[] infoStrBytes = infoStr.getBytes();
-        int infoStrLength = infoStrBytes.length;
-        dOut.writeInt(infoStrLength);
-        dOut.write(infoStrBytes);
-
-        // write buffer to the stream
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        // close streams
-        baOutStream.close();
-        dOut.close();
-
-        return marshalledBytes;
+        buffer.putInt(infoStrBytes.length);
+        buffer.put(infoStrBytes);
     }
 }
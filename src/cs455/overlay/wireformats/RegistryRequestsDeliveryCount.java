@@ -0,0 +1,40 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  Sent by the registry once every node has finished sending, to find out if the packets still being relayed have
+    all arrived. Nodes answer with an OverlayNodeReportsDeliveryCount for the same round  */
+public class RegistryRequestsDeliveryCount implements Protocol, Event {
+    private int type = REGISTRY_REQUESTS_DELIVERY_COUNT;
+    private int round;
+
+    public RegistryRequestsDeliveryCount(int round) {
+        this.round = round;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public int encodedSize() {
+        return 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        /*
+            Msg outline:
+                int: msg type (REGISTRY_REQUESTS_DELIVERY_COUNT)
+                int: probe round, so answers to an earlier round can be told apart
+         */
+        buffer.putInt(type);
+
+        buffer.putInt(round);
+    }
+}
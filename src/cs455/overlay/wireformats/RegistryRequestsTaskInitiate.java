@@ -1,50 +1,55 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryRequestsTaskInitiate implements Protocol, Event {
     private int type = REGISTRY_REQUESTS_TASK_INITIATE;
     private int numPacketsToSend;
+    // packets per second each node sends at, 0 to send as fast as possible
+    private int packetsPerSecond;
 
     public RegistryRequestsTaskInitiate(int numPacketsToSend) {
+        this(numPacketsToSend, 0);
+    }
+
+    public RegistryRequestsTaskInitiate(int numPacketsToSend, int packetsPerSecond) {
         this.numPacketsToSend = numPacketsToSend;
+        this.packetsPerSecond = packetsPerSecond;
     }
 
     public int getNumPacketsToSend() {
         return numPacketsToSend;
     }
 
+    public int getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
     @Override
     public int getType() {
         return type;
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4 + 4 + 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
                 byte: msg type (REGISTRY_REQUESTS_TASK_INITIATE)
                 int:  number of data packets to send
+                int:  packets per second per node, 0 if unpaced
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
         // msg type
-        dOut.writeInt(type);
+        buffer.putInt(type);
 
         // number of data packets to send
-        dOut.writeInt(numPacketsToSend);
-
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        baOutStream.close();
-        dOut.close();
+        buffer.putInt(numPacketsToSend);
 
-        return marshalledBytes;
+        // target rate
+        buffer.putInt(packetsPerSecond);
     }
 }
@@ -1,8 +1,6 @@
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryRequestsTrafficSummary implements Protocol, Event {
     private int type = REGISTRY_REQUESTS_TRAFFIC_SUMMARY;
@@ -13,22 +11,14 @@ public class RegistryRequestsTrafficSummary implements Protocol, Event {
     }
 
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        return 4;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*  Msg outline:
             int: type  */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
-
-        dOut.writeInt(type);
-
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        baOutStream.close();
-        dOut.close();
-
-        return marshalledBytes;
+        buffer.putInt(type);
     }
 }
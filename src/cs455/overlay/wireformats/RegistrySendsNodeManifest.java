@@ -1,10 +1,9 @@
 package cs455.overlay.wireformats;
 
+import cs455.overlay.routing.Endpoint;
 import cs455.overlay.routing.RoutingTable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class RegistrySendsNodeManifest implements Protocol, Event {
@@ -12,6 +11,8 @@ public class RegistrySendsNodeManifest implements Protocol, Event {
     private RoutingTable routingTable;
     private int numNodes;
     private ArrayList<Integer> registeredNodeIDs;
+    // the num node IDs and node IDs section, the same for every node's manifest. null encodes it from the list
+    private byte[] encodedMembership;
 
     public RegistrySendsNodeManifest(RoutingTable routingTable, int numNodes, ArrayList<Integer> registeredNodeIDs) {
         this.routingTable = routingTable;
@@ -19,6 +20,30 @@ public class RegistrySendsNodeManifest implements Protocol, Event {
         this.registeredNodeIDs = registeredNodeIDs;
     }
 
+    /*  For the registry's setup-overlay: encodedMembership is from encodeMembership(), done once for the whole overlay
+        instead of once per node  */
+    public RegistrySendsNodeManifest(RoutingTable routingTable, int numNodes, ArrayList<Integer> registeredNodeIDs, byte[] encodedMembership) {
+        this(routingTable, numNodes, registeredNodeIDs);
+        this.encodedMembership = encodedMembership;
+    }
+
+    // The num node IDs and node IDs at the end of every manifest
+    public static byte[] encodeMembership(int numNodes, ArrayList<Integer> registeredNodeIDs) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * registeredNodeIDs.size());
+        encodeMembership(buffer, numNodes, registeredNodeIDs);
+        return buffer.array();
+    }
+
+    private static void encodeMembership(ByteBuffer buffer, int numNodes, ArrayList<Integer> registeredNodeIDs) {
+        // num node IDs in the system
+        buffer.putInt(numNodes);
+
+        // write each ID to the buffer
+        for (int i = 0; i < registeredNodeIDs.size(); ++i) {
+            buffer.putInt(registeredNodeIDs.get(i));
+        }
+    }
+
     @Override
     public int getType() {
         return type;
@@ -36,9 +61,17 @@ public class RegistrySendsNodeManifest implements Protocol, Event {
         return registeredNodeIDs;
     }
 
-    // marshall this msg into a byte arr
     @Override
-    public byte[] getBytes() throws IOException {
+    public int encodedSize() {
+        int size = 4 + 4;
+        for (int i = 0; i < routingTable.size(); ++i)
+            size += 4 + 4 + routingTable.getEndpoint(i).getIPbytes().length + 4 + 1;
+        return size + (encodedMembership != null ? encodedMembership.length : 4 + 4 * registeredNodeIDs.size());
+    }
+
+    // marshall this msg into the buffer
+    @Override
+    public void encode(ByteBuffer buffer) {
         /*
             Msg outline:
                 byte: msg type (REGISTRY_SENDS_NODE_MANIFEST)
@@ -47,10 +80,12 @@ public class RegistrySendsNodeManifest implements Protocol, Event {
                 int:  length of following IP field
                 byte: IP of node 1 hop away
                 int:  portNum of node 1 hop away
+                byte: 1 if node 1 hop away connects to this node, 0 if this node connects to it
                 int:  Node ID of node 2 hops away
                 int:  length of following IP field
                 byte: IP of node 2 hops away
                 int:  portNum of node 2 hops away
+                byte: 1 if node 2 hops away connects to this node, 0 if this node connects to it
                                 .
                                 .
                                 .
@@ -58,57 +93,39 @@ public class RegistrySendsNodeManifest implements Protocol, Event {
                 int:  length of following IP field
                 byte: IP of node 2^(Nr-1) hops away
                 int:  portNum of node 2^(Nr-1) hops away
+                byte: 1 if node 2^(Nr-1) hops away connects to this node, 0 if this node connects to it
+                int:  num node IDs in the system
+                int[]: node IDs in the system
          */
-        byte[] marshalledBytes = null;
-
-        ByteArrayOutputStream baOutStream = new ByteArrayOutputStream();
-        DataOutputStream dOut = new DataOutputStream(baOutStream);
 
         // type
-        dOut.writeInt(type);
+        buffer.putInt(type);
 
         // routing table size
-        dOut.writeInt(routingTable.size());
+        buffer.putInt(routingTable.size());
 
         /* Routing table entries */
 
         // Node ID of node 1 hop away
-        // TODO: these might not be in the right order because it is retrieving from a HashMap. Though it should be the same order as it would get printed, so might be okay
-        ArrayList<Integer> routingTableKeys = routingTable.getKeys();
-        ArrayList<String> routingTableVals = routingTable.getValues();
         for (int i = 0; i < routingTable.size(); ++i) {
             // ID of node 2^i hops away
-            dOut.writeInt(routingTableKeys.get(i));
-
-            // the IP and portNum are stored as a single string delimited with a colon
-            String[] IPportNumArr = routingTableVals.get(i).split(":");
-            String IP = IPportNumArr[0];
+            buffer.putInt(routingTable.getID(i));
 
             // IP of node 2^i hops away
-            byte[] IPbytes = IP.getBytes();
-            int IPlength = IPbytes.length;
-            dOut.writeInt(IPlength);
-            dOut.write(IPbytes);
+            Endpoint endpoint = routingTable.getEndpoint(i);
+            buffer.putInt(endpoint.getIPbytes().length);
+            buffer.put(endpoint.getIPbytes());
 
             // portNum of node 2^i hops away
-            int portNum = Integer.parseInt(IPportNumArr[1]);
-            dOut.writeInt(portNum);
-        }
+            buffer.putInt(endpoint.getPortNum());
 
-        // num node IDs in the system
-        dOut.writeInt(numNodes);
-
-        // write each ID to the buffer
-        for (int i = 0; i < registeredNodeIDs.size(); ++i) {
-            dOut.writeInt(registeredNodeIDs.get(i));
+            // which end of the pair opens the connection
+            buffer.put((byte) (routingTable.awaitsConnection(i) ? 1 : 0));
         }
 
-        dOut.flush();
-        marshalledBytes = baOutStream.toByteArray();
-
-        baOutStream.close();
-        dOut.close();
-
-        return marshalledBytes;
+        if (encodedMembership != null)
+            buffer.put(encodedMembership);
+        else
+            encodeMembership(buffer, numNodes, registeredNodeIDs);
     }
 }
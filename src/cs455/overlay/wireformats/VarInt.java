@@ -0,0 +1,67 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/*  Unsigned LEB128 variable length ints: 7 bits per byte, low bits first, the high bit of a byte set when
+    another byte follows. Values below 128 take one byte, so node IDs cost 1 byte instead of 4.
+    Only for non-negative values; a negative value would take 5 bytes.  */
+public class VarInt {
+    public static final int MAX_SIZE = 5;
+
+    // num bytes value encodes to
+    public static int size(int value) {
+        if ((value & ~0x7F) == 0)
+            return 1;
+        if ((value & ~0x3FFF) == 0)
+            return 2;
+        if ((value & ~0x1FFFFF) == 0)
+            return 3;
+        if ((value & ~0xFFFFFFF) == 0)
+            return 4;
+        return 5;
+    }
+
+    // Writes value at the buffer's position and advances it
+    public static void put(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Writes value at bytes[index] and returns the index after it
+    public static int put(byte[] bytes, int index, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[index++] = (byte) value;
+        return index;
+    }
+
+    // Reads the value at the buffer's position and advances it
+    public static int get(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /*  Reads the value at buffer[index] without moving the buffer's position.
+        The value was written by put(), so it takes size(value) bytes  */
+    public static int get(ByteBuffer buffer, int index) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            byte b = buffer.get(index++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}